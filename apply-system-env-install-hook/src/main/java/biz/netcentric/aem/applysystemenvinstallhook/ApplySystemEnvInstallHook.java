@@ -8,15 +8,29 @@
  */
 package biz.netcentric.aem.applysystemenvinstallhook;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.StringWriter;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
-
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+
+import javax.jcr.Item;
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
 import javax.jcr.PathNotFoundException;
@@ -26,15 +40,19 @@ import javax.jcr.PropertyType;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.jcr.Value;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.io.output.DeferredFileOutputStream;
+import org.apache.commons.lang.CharEncoding;
 import org.apache.commons.lang.StringUtils;
 import org.apache.jackrabbit.JcrConstants;
 import org.apache.jackrabbit.commons.JcrUtils;
 import org.apache.jackrabbit.vault.fs.api.PathFilterSet;
 import org.apache.jackrabbit.vault.fs.api.WorkspaceFilter;
-import org.apache.jackrabbit.vault.fs.io.Archive;
-import org.apache.jackrabbit.vault.fs.io.Archive.Entry;
 import org.apache.jackrabbit.vault.fs.io.ImportOptions;
 import org.apache.jackrabbit.vault.packaging.InstallContext;
 import org.apache.jackrabbit.vault.packaging.InstallHook;
@@ -43,7 +61,7 @@ import org.apache.jackrabbit.vault.packaging.VaultPackage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import biz.netcentric.aem.applysystemenvinstallhook.VariablesSource.NamedValue;
+import biz.netcentric.aem.applysystemenvinstallhook.VariablesMerger.EnvVarDeclaration;
 import biz.netcentric.aem.applysystemenvinstallhook.sources.JcrVarsSource;
 import biz.netcentric.aem.applysystemenvinstallhook.sources.OsEnvVarsSource;
 import biz.netcentric.aem.applysystemenvinstallhook.sources.SystemPropertiesVarsSource;
@@ -59,15 +77,31 @@ public class ApplySystemEnvInstallHook implements InstallHook {
 
     private static final String PROP_APPLY_SYSTEM_ENV_FOR_PATHS = "applySystemEnvForPaths";
     private static final String PROP_FAIL_FOR_MISSING_ENV_VARS = "failForMissingEnvVars";
+    private static final String PROP_CHECK_PARALLELISM = "applySystemEnvCheckParallelism";
+    private static final String PROP_SAVE_BATCH_SIZE = "applySystemEnvSaveBatchSize";
+    private static final String PROP_LOG_VERBOSITY = "applySystemEnvLogVerbosity";
 
     public static final String TEMPLATE_SUFFIX = ".TEMPLATE";
 
+    // optional index as shipped in oak-index/applySystemEnvTemplates.xml, used to find .TEMPLATE nodes via query if it exists (only in the
+    // fallback when the substitution plan is incomplete)
+    static final String TEMPLATE_INDEX_PATH = "/oak:index/applySystemEnvTemplates";
+
+    // adjusted files larger than this are buffered in a temp file before being compared to and written to the repository
+    static final int FILE_BUFFER_THRESHOLD = 1024 * 1024;
+
     private static final String PACKAGE_ROOT_PATH = "/etc/packages";
     private static final String PACKAGE_PROP_PREFIX = "envSpecificPackage_";
+    private static final String PACKAGE_VARS_PROP_PREFIX = "envSpecificPackageVars_";
 
     private InstallHookLogger logger = new InstallHookLogger();
-    private VariablesMerger variablesMerger = new VariablesMerger(logger);
-    private static VariablesSource variablesSource = null;
+    VariablesMerger variablesMerger = new VariablesMerger(logger);
+    private SaveBatcher saveBatcher;
+    final InstallRunMetrics metrics = new InstallRunMetrics();
+
+    // state from phase PREPARE for phase INSTALLED by install (packages may be installed concurrently)
+    private static final Map<InstallContext, InstallState> INSTALL_STATES = Collections
+            .synchronizedMap(new WeakHashMap<InstallContext, InstallState>());
 
     @Override
     public void execute(InstallContext context) throws PackageException {
@@ -77,116 +111,54 @@ public class ApplySystemEnvInstallHook implements InstallHook {
             ImportOptions options = context.getOptions();
             logger.setOptions(options);
             VaultPackage vaultPackage = context.getPackage();
-            WorkspaceFilter filter = vaultPackage.getMetaInf().getFilter();
-
-            List<String> jcrPathsToBeAdjusted = new ArrayList<String>();
-            String applyEnvVarsForPaths = vaultPackage.getProperties().getProperty(PROP_APPLY_SYSTEM_ENV_FOR_PATHS);
-            LOG.debug("Property applyEnvVarsForPaths from package={}", applyEnvVarsForPaths);
+            variablesMerger.setVerbosity(getVerbosity(vaultPackage));
 
-            if (StringUtils.isNotBlank(applyEnvVarsForPaths)) {
-                jcrPathsToBeAdjusted.addAll(Arrays.asList(applyEnvVarsForPaths.trim().split("[\\s*,]+")));
-            }
+            List<String> jcrPathsToBeAdjusted = getConfiguredPaths(vaultPackage);
 
             switch (context.getPhase()) {
             case PREPARE:
                 logger.log(getClass().getSimpleName() + " is active in " + vaultPackage.getId());
 
                 logger.log("Loading variable sources... ");
-                variablesSource = getVariablesSource(context);
+                VariablesSource preparedSource = getVariablesSource(vaultPackage, session, false);
 
-                boolean failForMissingEnvVar = Boolean.valueOf(vaultPackage.getProperties().getProperty(PROP_FAIL_FOR_MISSING_ENV_VARS));
-                LOG.debug("Property failForMissingEnvVar from package={}", failForMissingEnvVar);
+                long planStartTime = System.nanoTime();
+                SubstitutionPlan preparedPlan = new SubstitutionPlanBuilder(variablesMerger).build(vaultPackage.getId(),
+                        vaultPackage.getArchive());
+                metrics.addTimeSince("prepareScanTimeMs", planStartTime);
+                logger.log("Found " + preparedPlan.getTemplatePaths().size() + " .TEMPLATE nodes in package");
 
-                if (failForMissingEnvVar) {
-                    logger.log(getClass().getSimpleName()
-                            + " checking if all env vars are set due to package property failForMissingEnvVar=true");
-
-                    Archive archive = vaultPackage.getArchive();
-                    boolean allVariablesFoundInEnv = findMissingEnvVarInPackageEntry(archive, "/", archive.getJcrRoot(), options, jcrPathsToBeAdjusted);
-                    if (!allVariablesFoundInEnv) {
-                        String errMsg = "Aborting installation of package " + vaultPackage.getId() + " due to missing env variables";
-                        logger.log(errMsg);
-                        throw new PackageException(errMsg);
-                    }
-                }
+                checkMissingEnvVars(vaultPackage, jcrPathsToBeAdjusted, preparedPlan, preparedSource);
+                INSTALL_STATES.put(context, new InstallState(preparedSource, preparedPlan));
                 break;
 
             case INSTALLED:
 
-                if (variablesSource == null) {
+                InstallState installState = INSTALL_STATES.remove(context);
+                if (installState == null) {
                     String msg = "Sources as set in prepare phase are not available in INSTALLED phase anymore";
                     LOG.error(msg);
                     throw new IllegalStateException(msg);
                 }
+                VariablesSource variablesSource = installState.variablesSource;
 
-                collectTemplateNodes(vaultPackage, session, jcrPathsToBeAdjusted);
-
-                if (jcrPathsToBeAdjusted.isEmpty()) {
-                    logger.log("Install Hook " + getClass().getName()
-                            + " was configured but package property 'applyEnvVarsForPaths' was left blank and no .TEMPLATE nodes were found in package. No action taken.");
-                    return;
+                SubstitutionPlan plan = installState.substitutionPlan;
+                if (plan != null && !plan.getPackageId().equals(vaultPackage.getId())) {
+                    LOG.warn("Discarding substitution plan of package {} in INSTALLED phase of {}", plan.getPackageId(), vaultPackage.getId());
+                    plan = null;
                 }
-
-                for (String jcrPathToBeAdjusted : jcrPathsToBeAdjusted) {
-
-                    if (jcrPathToBeAdjusted.contains("@")) {
-                        String[] pathAndProperty = jcrPathToBeAdjusted.split("@", 2);
-                        String path = pathAndProperty[0];
-                        if (isNotCoveredbyFilter(filter, path, options)) {
-                            continue;
-                        }
-
-                        String propertyName = pathAndProperty[1];
-
-                        adjustProperty(session, path, propertyName, variablesSource, options);
-                    } else {
-                        if (isNotCoveredbyFilter(filter, jcrPathToBeAdjusted, options)) {
-                            continue;
-                        }
-                        
-                        Node nodeToBeAdjusted = session.getNode(jcrPathToBeAdjusted);
-                        
-                        if (isFile(nodeToBeAdjusted)) {
-                            String fileContent = IOUtils.toString(JcrUtils.readFile(nodeToBeAdjusted));
-
-                            String adjustedFileContent = variablesMerger.applyEnvVars(fileContent, variablesSource, nodeToBeAdjusted.getPath());
-
-                            String targetNodeName;
-                            if (isTemplateNode(nodeToBeAdjusted)) {
-                                targetNodeName = StringUtils.substringBeforeLast(nodeToBeAdjusted.getName(), TEMPLATE_SUFFIX);
-                            } else {
-                                targetNodeName = nodeToBeAdjusted.getName();
-                            }
-
-                            // only used to derive encoding
-                            String mimeType = "text/plain";
-                            JcrUtils.putFile(nodeToBeAdjusted.getParent(), targetNodeName, mimeType,
-                                    new ByteArrayInputStream(adjustedFileContent.getBytes()));
-                        } else {
-
-                            if (isTemplateNode(nodeToBeAdjusted)) {
-                                String targetPath = StringUtils.substringBeforeLast(nodeToBeAdjusted.getPath(), TEMPLATE_SUFFIX);
-                                if (session.itemExists(targetPath)) {
-                                    // ensure old properties get deleted
-                                    session.removeItem(targetPath);
-                                }
-                                nodeToBeAdjusted = copy(nodeToBeAdjusted, targetPath);
-                            }
-
-                            // adjust all string properties of node
-                            adjustAllPropertiesOfNodeTree(nodeToBeAdjusted, variablesSource, options);
-                        }
-                    }
-                    
+                if (plan != null && plan.isDiscoveryComplete()) {
+                    addPlannedTemplateNodes(plan, vaultPackage.getMetaInf().getFilter(), session, jcrPathsToBeAdjusted);
+                } else {
+                    collectTemplateNodes(vaultPackage, session, jcrPathsToBeAdjusted, plan);
                 }
 
-                logger.log("\n" + variablesMerger.getReplacementSummary());
-
-                savePackageLocation(session, vaultPackage);
-
-                session.save();
-                logger.log("Saved session. ");
-
+                applyEnvVars(vaultPackage, session, options, jcrPathsToBeAdjusted, plan, variablesSource);
+                break;
+            case PREPARE_FAILED:
+            case INSTALL_FAILED:
+            case END:
+                INSTALL_STATES.remove(context);
                 break;
             default:
                 break;
@@ -196,6 +168,190 @@ public class ApplySystemEnvInstallHook implements InstallHook {
         }
     }
 
+    /** Renders the .TEMPLATE nodes of an installed package again with the current variable values, without importing the package
+     * again. This is only possible if all templates of the package still exist in the repository and if all paths configured in
+     * package property applySystemEnvForPaths are .TEMPLATE nodes (other paths are adjusted in place, so the variables are not
+     * contained in the repository anymore). The templates are rendered by this class (e.g. the version embedded in bundle
+     * system-env-change-listener), which may differ from the version of the install hook contained in the package. Callers have to
+     * discard the changes of the session if an exception is thrown.
+     * 
+     * @param vaultPackage the installed package
+     * @param session the session to adjust the content with, saved if true is returned
+     * @param options the options used for logging
+     * @return true if the templates have been applied, false if the package has to be reinstalled instead
+     * @throws PackageException if the templates could not be applied or if variables are missing (and the package requires them) */
+    public boolean reapply(VaultPackage vaultPackage, Session session, ImportOptions options) throws PackageException {
+        try {
+            logger.setOptions(options);
+            variablesMerger.setVerbosity(getVerbosity(vaultPackage));
+
+            List<String> jcrPathsToBeAdjusted = getConfiguredPaths(vaultPackage);
+            for (String configuredPath : jcrPathsToBeAdjusted) {
+                if (!configuredPath.endsWith(TEMPLATE_SUFFIX)) {
+                    LOG.debug("Path {} of package {} is adjusted in place, cannot re-apply", configuredPath, vaultPackage.getId());
+                    return false;
+                }
+            }
+
+            long planStartTime = System.nanoTime();
+            SubstitutionPlan plan = new SubstitutionPlanBuilder(variablesMerger).build(vaultPackage.getId(), vaultPackage.getArchive());
+            metrics.addTimeSince("prepareScanTimeMs", planStartTime);
+            WorkspaceFilter filter = vaultPackage.getMetaInf().getFilter();
+            for (String templatePath : plan.getTemplatePaths()) {
+                if (filter.covers(templatePath) && !session.nodeExists(templatePath)) {
+                    LOG.info("Template {} of package {} does not exist in repository, cannot re-apply", templatePath, vaultPackage.getId());
+                    return false;
+                }
+            }
+
+            logger.log(getClass().getSimpleName() + " is re-applying templates of " + vaultPackage.getId());
+            // the sources are cached for the packages re-applied by the bundle system-env-change-listener
+            VariablesSource env = getVariablesSource(vaultPackage, session, true);
+            checkMissingEnvVars(vaultPackage, jcrPathsToBeAdjusted, plan, env);
+
+            if (plan.isDiscoveryComplete()) {
+                addPlannedTemplateNodes(plan, filter, session, jcrPathsToBeAdjusted);
+            } else {
+                collectTemplateNodes(vaultPackage, session, jcrPathsToBeAdjusted, plan);
+            }
+
+            applyEnvVars(vaultPackage, session, options, jcrPathsToBeAdjusted, plan, env);
+            return true;
+        } catch (RepositoryException | IOException e) {
+            throw new PackageException("Could not re-apply env vars to " + vaultPackage.getId() + ": " + e, e);
+        }
+    }
+
+    /** Loaded sources and plan of an install between phases PREPARE and INSTALLED. */
+    private static final class InstallState {
+        private final VariablesSource variablesSource;
+        private final SubstitutionPlan substitutionPlan;
+
+        InstallState(VariablesSource variablesSource, SubstitutionPlan substitutionPlan) {
+            this.variablesSource = variablesSource;
+            this.substitutionPlan = substitutionPlan;
+        }
+    }
+
+    private List<String> getConfiguredPaths(VaultPackage vaultPackage) {
+        List<String> jcrPathsToBeAdjusted = new ArrayList<String>();
+        String applyEnvVarsForPaths = vaultPackage.getProperties().getProperty(PROP_APPLY_SYSTEM_ENV_FOR_PATHS);
+        LOG.debug("Property applyEnvVarsForPaths from package={}", applyEnvVarsForPaths);
+
+        if (StringUtils.isNotBlank(applyEnvVarsForPaths)) {
+            jcrPathsToBeAdjusted.addAll(Arrays.asList(applyEnvVarsForPaths.trim().split("[\\s*,]+")));
+        }
+        return jcrPathsToBeAdjusted;
+    }
+
+    private void checkMissingEnvVars(VaultPackage vaultPackage, List<String> jcrPathsToBeAdjusted, SubstitutionPlan plan,
+            VariablesSource env) throws IOException, PackageException {
+        boolean failForMissingEnvVar = Boolean.valueOf(vaultPackage.getProperties().getProperty(PROP_FAIL_FOR_MISSING_ENV_VARS));
+        LOG.debug("Property failForMissingEnvVar from package={}", failForMissingEnvVar);
+
+        if (failForMissingEnvVar) {
+            logger.log(getClass().getSimpleName()
+                    + " checking if all env vars are set due to package property failForMissingEnvVar=true");
+
+            int checkParallelism = getIntPackageProperty(vaultPackage, PROP_CHECK_PARALLELISM, 1);
+            MissingEnvVarsCheck missingEnvVarsCheck = new MissingEnvVarsCheck(logger, variablesMerger, checkParallelism);
+            long checkStartTime = System.nanoTime();
+            SortedMap<String, SortedSet<String>> missingEnvVars = missingEnvVarsCheck.findMissingEnvVars(vaultPackage.getArchive(),
+                    jcrPathsToBeAdjusted, plan, env);
+            metrics.addTimeSince("missingVarsCheckTimeMs", checkStartTime);
+            if (!missingEnvVars.isEmpty()) {
+                missingEnvVarsCheck.logReport(missingEnvVars, env);
+                String errMsg = "Aborting installation of package " + vaultPackage.getId() + " due to missing env variables";
+                logger.log(errMsg);
+                throw new PackageException(errMsg);
+            }
+        }
+    }
+
+    private void applyEnvVars(VaultPackage vaultPackage, Session session, ImportOptions options, List<String> jcrPathsToBeAdjusted,
+            SubstitutionPlan plan, VariablesSource variablesSource) throws RepositoryException, IOException {
+        long startTime = System.nanoTime();
+        try {
+            adjustPaths(vaultPackage, session, options, jcrPathsToBeAdjusted, plan, variablesSource);
+        } finally {
+            metrics.addTimeSince("applyTimeMs", startTime);
+            publishMetrics(vaultPackage);
+        }
+    }
+
+    private void adjustPaths(VaultPackage vaultPackage, Session session, ImportOptions options, List<String> jcrPathsToBeAdjusted,
+            SubstitutionPlan plan, VariablesSource variablesSource) throws RepositoryException, IOException {
+
+        WorkspaceFilter filter = vaultPackage.getMetaInf().getFilter();
+
+        if (jcrPathsToBeAdjusted.isEmpty()) {
+            logger.log("Install Hook " + getClass().getName()
+                    + " was configured but package property 'applyEnvVarsForPaths' was left blank and no .TEMPLATE nodes were found in package. No action taken.");
+            return;
+        }
+
+        startAdjusting(session, options, getIntPackageProperty(vaultPackage, PROP_SAVE_BATCH_SIZE, 0));
+
+        for (String jcrPathToBeAdjusted : jcrPathsToBeAdjusted) {
+
+            if (jcrPathToBeAdjusted.contains("@")) {
+                String[] pathAndProperty = jcrPathToBeAdjusted.split("@", 2);
+                String path = pathAndProperty[0];
+                if (isNotCoveredbyFilter(filter, path, options)) {
+                    continue;
+                }
+
+                String propertyName = pathAndProperty[1];
+
+                adjustProperty(session, path, propertyName, variablesSource, options);
+            } else {
+                if (isNotCoveredbyFilter(filter, jcrPathToBeAdjusted, options)) {
+                    continue;
+                }
+                
+                Node nodeToBeAdjusted = session.getNode(jcrPathToBeAdjusted);
+                
+                if (isFile(nodeToBeAdjusted)) {
+                    adjustFile(nodeToBeAdjusted, variablesSource);
+                } else if (isTemplateNode(nodeToBeAdjusted)) {
+                    applyTemplate(nodeToBeAdjusted, plan, variablesSource, options);
+                } else {
+                    // adjust all string properties of node
+                    adjustAllPropertiesOfNodeTree(nodeToBeAdjusted, variablesSource, options);
+                }
+            }
+
+            saveBatcher.saveIfBatchFull();
+        }
+
+        variablesMerger.logAggregatedReplacements();
+        logger.log("\n" + variablesMerger.getReplacementSummary());
+
+        savePackageLocation(session, vaultPackage);
+
+        saveBatcher.saveAll();
+        logger.log("Saved session. ");
+    }
+
+    void startAdjusting(Session session, ImportOptions options, int saveBatchSize) {
+        logger.setOptions(options);
+        saveBatcher = new SaveBatcher(session, logger, saveBatchSize);
+    }
+
+    private void publishMetrics(VaultPackage vaultPackage) {
+        if (saveBatcher != null) {
+            metrics.add("saveTimeMs", saveBatcher.getSaveTimeMillis());
+            metrics.add("saveCount", saveBatcher.getSavedBatchesCount());
+        }
+        metrics.add("itemsChanged", variablesMerger.getChangedItemsCount());
+        metrics.add("itemsUnchanged", variablesMerger.getUnchangedItemsCount());
+        metrics.add("binaryFilesSkipped", variablesMerger.getSkippedBinaryFilesCount());
+        for (Map.Entry<String, Integer> replacementCount : variablesMerger.getReplacementCounts().entrySet()) {
+            metrics.add(InstallRunMetrics.SUBSTITUTIONS_PREFIX + replacementCount.getKey(), replacementCount.getValue());
+        }
+        InstallHookMetrics.publish(vaultPackage.getId().toString(), metrics);
+    }
+
     private void savePackageLocation(Session session, VaultPackage vaultPackage) {
         LOG.debug("Saving information that this package contains env-specific values and the install hook "
                 + "in order to allow listeners to reinstall it");
@@ -204,18 +360,48 @@ public class ApplySystemEnvInstallHook implements InstallHook {
             String group = vaultPackage.getProperty("group");
             String name = vaultPackage.getProperty("name");
             // using a key that will make sure that packages with same group/name but different version are only reinstalled once
-            String packageKey = PACKAGE_PROP_PREFIX
-                    + group.replaceAll("[^A-Za-z0-9]", "")
+            String packageKey = group.replaceAll("[^A-Za-z0-9]", "")
                     + "_" + name.replaceAll("[^A-Za-z0-9]", "");
-            node.setProperty(packageKey, vaultPackage.getId().toString());
+            node.setProperty(PACKAGE_PROP_PREFIX + packageKey, vaultPackage.getId().toString());
+            // the variables used by the package allow listeners to only reinstall packages affected by a change
+            SortedSet<String> usedVariableNames = variablesMerger.getUsedVariableNames();
+            node.setProperty(PACKAGE_VARS_PROP_PREFIX + packageKey, usedVariableNames.toArray(new String[usedVariableNames.size()]));
         } catch (Exception e) {
             LOG.info("Could not save package location of " + vaultPackage.getId() + ": " + e, e);
         }
 
     }
 
-    private VariablesSource getVariablesSource(InstallContext context) {
-        String applySystemEnvSources = context.getPackage().getProperties().getProperty(PROP_APPLY_ENV_SOURCES);
+    private int getIntPackageProperty(VaultPackage vaultPackage, String propertyName, int defaultValue) {
+        String value = vaultPackage.getProperties().getProperty(propertyName);
+        LOG.debug("Property {} from package={}", propertyName, value);
+        if (StringUtils.isBlank(value)) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            logger.log("Invalid value '" + value + "' for package property " + propertyName + ", using default " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    private VariablesMerger.Verbosity getVerbosity(VaultPackage vaultPackage) {
+        String value = vaultPackage.getProperties().getProperty(PROP_LOG_VERBOSITY);
+        if (StringUtils.isBlank(value)) {
+            return VariablesMerger.Verbosity.DETAIL;
+        }
+        VariablesMerger.Verbosity verbosity = VariablesMerger.Verbosity.fromString(value);
+        if (verbosity == null) {
+            logger.log("Invalid value '" + value + "' for package property " + PROP_LOG_VERBOSITY + ", using default "
+                    + VariablesMerger.Verbosity.DETAIL.name().toLowerCase());
+            return VariablesMerger.Verbosity.DETAIL;
+        }
+        return verbosity;
+    }
+
+    private VariablesSource getVariablesSource(VaultPackage vaultPackage, Session session, boolean useCache) {
+        String applySystemEnvSources = vaultPackage.getProperties().getProperty(PROP_APPLY_ENV_SOURCES);
         List<String> sourceNames;
         if (StringUtils.isNotBlank(applySystemEnvSources)) {
             LOG.debug("Property applySystemEnvSources from package={}", applySystemEnvSources);
@@ -225,15 +411,43 @@ public class ApplySystemEnvInstallHook implements InstallHook {
         }
         logger.log("Using sources [" + StringUtils.join(sourceNames, ", ") + "]");
 
-        VariablesSource env = CombinedVariablesSource.forSources(sourceNames, logger, context);
+        CombinedVariablesSource combinedSource = CombinedVariablesSource.forSources(sourceNames, logger, session, useCache);
+        for (Map.Entry<String, Long> sourceLoadTime : combinedSource.getSourceLoadTimes().entrySet()) {
+            metrics.add(InstallRunMetrics.SOURCE_LOAD_TIME_PREFIX + sourceLoadTime.getKey(), sourceLoadTime.getValue());
+        }
+        VariablesSource env = new ResolvedVariablesSource(combinedSource);
         return env;
     }
 
 
-    // not using workspace.copy() because that method saves immediately
-    private Node copy(Node sourceNode, String targetPath) throws RepositoryException {
+    void applyTemplate(Node templateNode, SubstitutionPlan plan, VariablesSource variablesSource, ImportOptions options)
+            throws RepositoryException {
+        Session session = templateNode.getSession();
+        String templatePath = templateNode.getPath();
+        String targetPath = StringUtils.substringBeforeLast(templatePath, TEMPLATE_SUFFIX);
+        if (session.itemExists(targetPath)) {
+            // ensure old properties get deleted (the removal is saved together with the re-created target node, never on its own)
+            saveBatcher.itemsModified(countItems(session.getItem(targetPath)));
+            session.removeItem(targetPath);
+        }
+
+        // only adjust the properties that contain variables as found in PREPARE phase (if planned)
+        SortedMap<String, Map<String, List<EnvVarDeclaration>>> plannedProperties = null;
+        if (plan != null && plan.isPlanned(templatePath)) {
+            plannedProperties = plan.getPropertiesWithVariables(templatePath);
+        }
+        copyAndAdjust(templateNode, targetPath, plannedProperties, variablesSource, options);
+    }
+
+    // not using workspace.copy() because that method saves immediately; every node is adjusted right after it has been copied, so a batch
+    // can be saved after each node without persisting a node with variables that are not replaced yet
+    private Node copyAndAdjust(Node sourceNode, String targetPath,
+            SortedMap<String, Map<String, List<EnvVarDeclaration>>> plannedProperties, VariablesSource env, ImportOptions options)
+            throws RepositoryException {
         LOG.trace("Copy {} to {}", sourceNode, targetPath);
         Node targetNode = JcrUtils.getOrCreateByPath(targetPath, sourceNode.getPrimaryNodeType().getName(), sourceNode.getSession());
+        saveBatcher.itemsModified(1);
+        metrics.nodesVisited++;
         PropertyIterator propertiesIt = sourceNode.getProperties();
         while(propertiesIt.hasNext()) {
             Property sourceProp = propertiesIt.nextProperty();
@@ -245,17 +459,45 @@ public class ApplySystemEnvInstallHook implements InstallHook {
             } else {
                 targetNode.setProperty(sourceProp.getName(), sourceProp.getValue(), sourceProp.getType());
             }
+            saveBatcher.itemsModified(1);
             LOG.trace("Copied {} / {} to {}", sourceProp.getName(), sourceProp.getType(), targetNode);
 
         }
+
+        if (plannedProperties == null) {
+            adjustAllProperties(targetNode, env, options);
+        } else {
+            Map<String, List<EnvVarDeclaration>> plannedPropertiesOfNode = plannedProperties.get(sourceNode.getPath());
+            if (plannedPropertiesOfNode != null) {
+                for (String propertyName : plannedPropertiesOfNode.keySet()) {
+                    adjustProperty(targetNode.getSession(), targetPath, propertyName, env, options);
+                }
+            }
+        }
+        saveBatcher.saveIfBatchFull();
+
         NodeIterator nodesIt = sourceNode.getNodes();
         while (nodesIt.hasNext()) {
             Node childNode = nodesIt.nextNode();
-            copy(childNode, targetPath + "/" + childNode.getName());
+            copyAndAdjust(childNode, targetPath + "/" + childNode.getName(), plannedProperties, env, options);
         }
         return targetNode;
     }
 
+    // the number of nodes and properties of the given tree
+    private int countItems(Item item) throws RepositoryException {
+        if (!item.isNode()) {
+            return 1;
+        }
+        Node node = (Node) item;
+        int count = 1 + (int) node.getProperties().getSize();
+        NodeIterator nodesIt = node.getNodes();
+        while (nodesIt.hasNext()) {
+            count += countItems(nodesIt.nextNode());
+        }
+        return count;
+    }
+
     private boolean isTemplateNode(Node nodeToBeAdjusted) throws RepositoryException {
         return nodeToBeAdjusted.getPath().endsWith(TEMPLATE_SUFFIX);
     }
@@ -269,13 +511,122 @@ public class ApplySystemEnvInstallHook implements InstallHook {
         return isFile;
     }
 
-    private void adjustAllPropertiesOfNodeTree(Node node, VariablesSource env, ImportOptions options)
-            throws RepositoryException {
-        PropertyIterator propertiesIt = node.getProperties();
-        while (propertiesIt.hasNext()) {
-            Property prop = propertiesIt.nextProperty();
-            adjustProperty(node.getSession(), node.getPath(), prop.getName(), env, options);
+    // streams the file through the substitution into a buffer that is spilled to a temp file for large files (the content is never held in
+    // memory as a whole), the target node is only written if its content differs from the buffer
+    void adjustFile(Node fileNode, VariablesSource env) throws RepositoryException, IOException {
+        String targetNodeName;
+        if (isTemplateNode(fileNode)) {
+            targetNodeName = StringUtils.substringBeforeLast(fileNode.getName(), TEMPLATE_SUFFIX);
+        } else {
+            targetNodeName = fileNode.getName();
+        }
+
+        metrics.nodesVisited++;
+
+        // the content is only decoded if it contains placeholders
+        boolean binary = false;
+        boolean containsPlaceholders = false;
+        // counting below the buffer, so the bytes read again after the reset of the sniffer are not counted twice
+        CountingInputStream scannedBytes = new CountingInputStream(JcrUtils.readFile(fileNode));
+        InputStream scannedContent = new BufferedInputStream(scannedBytes);
+        try {
+            binary = BinaryContentSniffer.isBinary(scannedContent);
+            containsPlaceholders = !binary && PlaceholderPreScanner.containsPlaceholderStart(scannedContent);
+        } finally {
+            IOUtils.closeQuietly(scannedContent);
+            metrics.fileBytesProcessed += scannedBytes.getByteCount();
+        }
+        if (binary) {
+            variablesMerger.countSkippedBinaryFile();
+        }
+        if (!containsPlaceholders && !isTemplateNode(fileNode)) {
+            LOG.debug("File {} is {}, skipping it", fileNode.getPath(), binary ? "binary" : "without variables");
+            if (!binary) {
+                variablesMerger.countUnchangedItem();
+            }
+            return;
+        }
+
+        DeferredFileOutputStream adjustedFileContent = new DeferredFileOutputStream(FILE_BUFFER_THRESHOLD, "applysysenv-", ".tmp", null);
+        try {
+            String mimeType;
+            // the file is read a second time for the substitution (or copy)
+            CountingInputStream fileContent = new CountingInputStream(JcrUtils.readFile(fileNode));
+            if (containsPlaceholders) {
+                Reader reader = new VariablesSubstitutingReader(new InputStreamReader(fileContent, CharEncoding.UTF_8),
+                        variablesMerger, env, fileNode.getPath());
+                Writer writer = new OutputStreamWriter(adjustedFileContent, CharEncoding.UTF_8);
+                try {
+                    IOUtils.copyLarge(reader, writer);
+                } finally {
+                    IOUtils.closeQuietly(reader);
+                    writer.close();
+                }
+                // only used to derive encoding
+                mimeType = "text/plain";
+            } else {
+                // templates without variables (e.g. binaries) are copied as is
+                try {
+                    IOUtils.copyLarge(fileContent, adjustedFileContent);
+                } finally {
+                    IOUtils.closeQuietly(fileContent);
+                    adjustedFileContent.close();
+                }
+                mimeType = binary ? getMimeType(fileNode, "application/octet-stream") : "text/plain";
+            }
+            metrics.fileBytesProcessed += fileContent.getByteCount();
+
+            Node parentNode = fileNode.getParent();
+            if (parentNode.hasNode(targetNodeName) && hasContent(parentNode.getNode(targetNodeName), adjustedFileContent)) {
+                LOG.debug("File {}/{} is unchanged", parentNode.getPath(), targetNodeName);
+                variablesMerger.countUnchangedItem();
+                return;
+            }
+
+            InputStream adjustedFileContentStream = openInputStream(adjustedFileContent);
+            try {
+                JcrUtils.putFile(parentNode, targetNodeName, mimeType, adjustedFileContentStream);
+            } finally {
+                IOUtils.closeQuietly(adjustedFileContentStream);
+            }
+            variablesMerger.countChangedItem();
+            saveBatcher.itemsModified(1);
+        } finally {
+            if (!adjustedFileContent.isInMemory()) {
+                FileUtils.deleteQuietly(adjustedFileContent.getFile());
+            }
+        }
+    }
+
+    private String getMimeType(Node fileNode, String defaultMimeType) throws RepositoryException {
+        Node contentNode = fileNode.hasNode(JcrConstants.JCR_CONTENT) ? fileNode.getNode(JcrConstants.JCR_CONTENT) : fileNode;
+        return contentNode.hasProperty(JcrConstants.JCR_MIMETYPE) ? contentNode.getProperty(JcrConstants.JCR_MIMETYPE).getString()
+                : defaultMimeType;
+    }
+
+    private boolean hasContent(Node node, DeferredFileOutputStream content) throws RepositoryException, IOException {
+        if (!isFile(node)) {
+            return false;
         }
+        InputStream existingContent = JcrUtils.readFile(node);
+        InputStream newContent = openInputStream(content);
+        try {
+            return IOUtils.contentEquals(existingContent, newContent);
+        } finally {
+            IOUtils.closeQuietly(existingContent);
+            IOUtils.closeQuietly(newContent);
+        }
+    }
+
+    private InputStream openInputStream(DeferredFileOutputStream content) throws IOException {
+        return content.isInMemory() ? new ByteArrayInputStream(content.getData()) : new FileInputStream(content.getFile());
+    }
+
+    void adjustAllPropertiesOfNodeTree(Node node, VariablesSource env, ImportOptions options)
+            throws RepositoryException {
+        metrics.nodesVisited++;
+        adjustAllProperties(node, env, options);
+        saveBatcher.saveIfBatchFull();
         NodeIterator nodesIt = node.getNodes();
         while (nodesIt.hasNext()) {
             Node childNode = nodesIt.nextNode();
@@ -283,6 +634,14 @@ public class ApplySystemEnvInstallHook implements InstallHook {
         }
     }
 
+    private void adjustAllProperties(Node node, VariablesSource env, ImportOptions options) throws RepositoryException {
+        PropertyIterator propertiesIt = node.getProperties();
+        while (propertiesIt.hasNext()) {
+            Property prop = propertiesIt.nextProperty();
+            adjustProperty(node.getSession(), node.getPath(), prop.getName(), env, options);
+        }
+    }
+
     private void adjustProperty(Session session, String path, String propertyName, VariablesSource env, ImportOptions options)
             throws RepositoryException {
         String propertyPath = path + "@" + propertyName;
@@ -290,6 +649,7 @@ public class ApplySystemEnvInstallHook implements InstallHook {
             LOG.debug("Looking at path {} prop {}", path, propertyName);
             Node node = session.getNode(path);
             Property property = node.getProperty(propertyName);
+            metrics.propertiesVisited++;
             if (property.getDefinition().isProtected()) {
                 return;
             }
@@ -298,19 +658,35 @@ public class ApplySystemEnvInstallHook implements InstallHook {
                 return;
             }
 
+            // only write the property if a value actually changed
+            boolean changed = false;
             if (!property.isMultiple()) {
                 String stringValueRaw = property.getString();
+                metrics.propertyCharsProcessed += stringValueRaw.length();
                 String adjustedValue = variablesMerger.applyEnvVars(stringValueRaw, env, propertyPath);
-                property.setValue(adjustedValue);
+                if (!adjustedValue.equals(stringValueRaw)) {
+                    property.setValue(adjustedValue);
+                    changed = true;
+                }
             } else {
                 List<Value> newValues = new ArrayList<Value>();
                 Value[] values = property.getValues();
                 for (int i = 0; i < values.length; i++) {
                     String stringValueRaw = values[i].getString();
+                    metrics.propertyCharsProcessed += stringValueRaw.length();
                     String adjustedValue = variablesMerger.applyEnvVars(stringValueRaw, env, propertyPath + "[" + i + "]");
+                    changed |= !adjustedValue.equals(stringValueRaw);
                     newValues.add(session.getValueFactory().createValue(adjustedValue));
                 }
-                property.setValue(newValues.toArray(new Value[newValues.size()]));
+                if (changed) {
+                    property.setValue(newValues.toArray(new Value[newValues.size()]));
+                }
+            }
+            if (changed) {
+                variablesMerger.countChangedItem();
+                saveBatcher.itemsModified(1);
+            } else {
+                variablesMerger.countUnchangedItem();
             }
 
         } catch (PathNotFoundException e) {
@@ -318,39 +694,141 @@ public class ApplySystemEnvInstallHook implements InstallHook {
         }
     }
 
-    private void collectTemplateNodes(VaultPackage vaultPackage, Session session, List<String> jcrPathsToBeAdjusted)
-            throws RepositoryException {
-        
+    private void addPlannedTemplateNodes(SubstitutionPlan plan, WorkspaceFilter workspaceFilter, Session session,
+            List<String> jcrPathsToBeAdjusted) throws RepositoryException {
+        for (String templatePath : plan.getTemplatePaths()) {
+            if (!workspaceFilter.covers(templatePath)) {
+                LOG.debug("Template {} is not covered by filter", templatePath);
+                continue;
+            }
+            if (!session.nodeExists(templatePath)) {
+                LOG.debug("Template {} does not exist in repository", templatePath);
+                continue;
+            }
+            jcrPathsToBeAdjusted.add(templatePath);
+            LOG.debug("found={}", templatePath);
+        }
+    }
+
+    /** Fallback for a missing or incomplete substitution plan (see {@link SubstitutionPlan#isDiscoveryComplete()}): searches the filter
+     * roots in the repository for .TEMPLATE nodes, via the optional index {@link #TEMPLATE_INDEX_PATH} if it exists. */
+    void collectTemplateNodes(VaultPackage vaultPackage, Session session, List<String> jcrPathsToBeAdjusted,
+            SubstitutionPlan plan) throws RepositoryException {
+
         WorkspaceFilter workspaceFilter = vaultPackage.getMetaInf().getFilter();
         List<PathFilterSet> filterSets = workspaceFilter.getFilterSets();
-        
+
+        List<String> indexedPaths = getTemplateIndexQueryPaths(session);
+        if (indexedPaths != null) {
+            logger.log("Using index " + TEMPLATE_INDEX_PATH + " to find .TEMPLATE nodes below " + indexedPaths);
+        }
+
+        // set to look up templates found by query quickly when adding the templates of the package
+        Set<String> templatePaths = new LinkedHashSet<String>();
         for(PathFilterSet filterSet: filterSets) {
             String filterRoot = filterSet.getRoot();
             try {
                 Node node = session.getNode(filterRoot);
-                collectTemplateNodes(workspaceFilter, node, jcrPathsToBeAdjusted);
+                if (indexedPaths != null && isBelowAny(filterRoot, indexedPaths)) {
+                    try {
+                        queryTemplateNodes(workspaceFilter, node, templatePaths);
+                        continue;
+                    } catch (UnsupportedOperationException e) {
+                        // thrown by Oak if the query would traverse more nodes than allowed
+                        logger.log("Could not query .TEMPLATE nodes below " + filterRoot + ", traversing instead: " + e.getMessage());
+                    }
+                }
+                collectTemplateNodes(workspaceFilter, node, templatePaths);
             } catch (PathNotFoundException e) {
                 LOG.debug("Filter root {} not found", filterRoot);
             }
 
         }
-        
+
+        if (indexedPaths != null && plan != null) {
+            // the index is updated asynchronously, templates just imported may not be found via query yet
+            for (String templatePath : plan.getTemplatePaths()) {
+                if (!templatePaths.contains(templatePath) && workspaceFilter.covers(templatePath)
+                        && session.nodeExists(templatePath)) {
+                    templatePaths.add(templatePath);
+                    LOG.debug("found in package={}", templatePath);
+                }
+            }
+        }
+        jcrPathsToBeAdjusted.addAll(templatePaths);
+    }
+
+    /** @return the query paths of the template index or null if the index does not exist */
+    private List<String> getTemplateIndexQueryPaths(Session session) throws RepositoryException {
+        if (!session.nodeExists(TEMPLATE_INDEX_PATH)) {
+            return null;
+        }
+        Node indexNode = session.getNode(TEMPLATE_INDEX_PATH);
+        List<String> queryPaths = new ArrayList<String>();
+        for (String pathsProperty : new String[] { "queryPaths", "includedPaths" }) {
+            if (indexNode.hasProperty(pathsProperty)) {
+                Property property = indexNode.getProperty(pathsProperty);
+                for (Value value : property.isMultiple() ? property.getValues() : new Value[] { property.getValue() }) {
+                    queryPaths.add(value.getString());
+                }
+                return queryPaths;
+            }
+        }
+        queryPaths.add("/");
+        return queryPaths;
+    }
+
+    private static boolean isBelowAny(String path, List<String> rootPaths) {
+        for (String rootPath : rootPaths) {
+            if ("/".equals(rootPath) || path.equals(rootPath) || path.startsWith(rootPath + "/")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void queryTemplateNodes(WorkspaceFilter workspaceFilter, Node rootNode, Collection<String> templatePaths)
+            throws RepositoryException {
+
+        String rootPath = rootNode.getPath();
+        // sorted to adjust parents before children as it is the case for the tree walk
+        SortedSet<String> foundPaths = new TreeSet<String>();
+        if (rootPath.endsWith(TEMPLATE_SUFFIX)) {
+            foundPaths.add(rootPath);
+        }
+
+        String statement = "SELECT [jcr:path] FROM [nt:base] AS n WHERE ISDESCENDANTNODE(n, '" + rootPath.replace("'", "''")
+                + "') AND LOCALNAME(n) LIKE '%" + TEMPLATE_SUFFIX + "'";
+        LOG.debug("Query: {}", statement);
+        QueryManager queryManager = rootNode.getSession().getWorkspace().getQueryManager();
+        // the result is fully read before adding the paths, so a traversal failure falls back to the tree walk cleanly
+        NodeIterator nodesIt = queryManager.createQuery(statement, Query.JCR_SQL2).execute().getNodes();
+        while (nodesIt.hasNext()) {
+            foundPaths.add(nodesIt.nextNode().getPath());
+        }
+
+        for (String templatePath : foundPaths) {
+            if (workspaceFilter.covers(templatePath)) {
+                templatePaths.add(templatePath);
+                LOG.debug("found={}", templatePath);
+            }
+        }
     }
 
-    private void collectTemplateNodes(WorkspaceFilter workspaceFilter, Node node, List<String> jcrPathsToBeAdjusted)
+    private void collectTemplateNodes(WorkspaceFilter workspaceFilter, Node node, Collection<String> templatePaths)
             throws RepositoryException {
 
         String nodePath = node.getPath();
         LOG.debug("nodePath={}", nodePath);
         if (nodePath.endsWith(TEMPLATE_SUFFIX) && workspaceFilter.covers(nodePath)) {
-            jcrPathsToBeAdjusted.add(nodePath);
+            templatePaths.add(nodePath);
             LOG.debug("found={}", nodePath);
         }
 
         NodeIterator nodesIt = node.getNodes();
         while (nodesIt.hasNext()) {
             Node childNode = nodesIt.nextNode();
-            collectTemplateNodes(workspaceFilter, childNode, jcrPathsToBeAdjusted);
+            collectTemplateNodes(workspaceFilter, childNode, templatePaths);
         }
     }
 
@@ -362,65 +840,4 @@ public class ApplySystemEnvInstallHook implements InstallHook {
         return !covered;
     }
 
-    private boolean findMissingEnvVarInPackageEntry(Archive archive, String parentPath, Entry entry, ImportOptions options, List<String> jcrPathsToBeAdjusted) {
-
-        String path = parentPath + "/" + entry.getName();
-        boolean result = true;
-        if (!entry.isDirectory() && 
-        		(isPathExplictlyMarkedForAdjustment(path, jcrPathsToBeAdjusted) || path.endsWith(TEMPLATE_SUFFIX))) {
-        	
-            String fileContent = null;
-            LOG.debug("Reading file {}", path);
-            try {
-                InputStream input = archive.getInputSource(entry).getByteStream();
-                if (input == null) {
-                    throw new IllegalStateException("Could not get input stream from entry " + path);
-                }
-                StringWriter writer = new StringWriter();
-                IOUtils.copy(input, writer, "UTF-8");
-                fileContent = writer.toString();
-            } catch (Exception e) {
-                logger.log("Could not read " + path + " as text, skipping (" + e + ")");
-
-            }
-
-            if (fileContent != null) {
-
-                List<VariablesMerger.EnvVarDeclaration> envVarDeclarations = variablesMerger.getEnvVarDeclarations(fileContent);
-                for (VariablesMerger.EnvVarDeclaration envVar : envVarDeclarations) {
-
-                    if (envVar.defaultVal != null) {
-                        LOG.debug("Default value given for variable {}", envVar);
-                        continue;
-                    }
-                    NamedValue varEntry = variablesSource.get(envVar.name);
-                    if (varEntry == null) {
-                        logger.log("Variable '" + envVar.name + "' is not found but is used in file " + path
-                                + " without declaring a default and it could not be found in sources: " + variablesSource.getName());
-                        result = false;
-                    }
-                }
-
-            }
-        }
-
-        Collection<? extends Entry> children = entry.getChildren();
-        for (Entry subEntry : children) {
-            result &= findMissingEnvVarInPackageEntry(archive, path, subEntry, options, jcrPathsToBeAdjusted);
-        }
-
-        return result;
-    }
-    
-    private boolean isPathExplictlyMarkedForAdjustment(String currentPath, List<String> jcrPathsToBeAdjusted) {
-		String currentPathNormalised = currentPath.replaceFirst("^//jcr_root", "").replaceFirst("/.content.xml$", "").replaceFirst(".xml$", "");
-    	for (String jcrPathToBeAdjusted : jcrPathsToBeAdjusted) {
-    		String pureJcrPathToBeAdjusted = StringUtils.substringBefore(jcrPathToBeAdjusted, "@");
-    		if(currentPathNormalised.startsWith(pureJcrPathToBeAdjusted)) {
-    			return true;
-    		}
-		}
-    	return false;
-    }
-    
 }
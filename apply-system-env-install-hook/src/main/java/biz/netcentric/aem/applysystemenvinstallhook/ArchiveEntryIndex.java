@@ -0,0 +1,155 @@
+/*
+ * (C) Copyright 2018 Netcentric, A Cognizant Digital Business.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.aem.applysystemenvinstallhook;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+import org.apache.jackrabbit.vault.fs.io.Archive;
+import org.apache.jackrabbit.vault.fs.io.Archive.Entry;
+import org.apache.jackrabbit.vault.util.PlatformNameFormat;
+
+/** Flat index of the file entries below jcr_root of a package archive. It is filled by {@link SubstitutionPlanBuilder} while it walks
+ * the archive for the plan (see {@link SubstitutionPlan#getEntryIndex()}), {@link #build(Archive)} walks the archive only if there is no
+ * plan.
+ *
+ * The JCR path of each entry (without .content.xml resp. .xml extension of DocView files, with platform names decoded) is computed
+ * once while indexing with {@link #toJcrPath(String, boolean)} (that the plan builder uses for its node paths as well), so entries can
+ * be matched against the configured paths (see {@link ConfiguredPathsTrie}) without normalising the archive path again. */
+class ArchiveEntryIndex {
+
+    static final String JCR_ROOT_PATH = "//jcr_root";
+    private static final String DOCVIEW_FILE_SUFFIX = "/.content.xml";
+    private static final String XML_SUFFIX = ".xml";
+    private static final String DIR_SUFFIX = ".dir";
+
+    private final List<IndexedEntry> entries = new ArrayList<IndexedEntry>();
+    private final List<IndexedEntry> templateEntries = new ArrayList<IndexedEntry>();
+
+    /** Walks the archive for the index, only needed if there is no plan built from the archive. */
+    static ArchiveEntryIndex build(Archive archive) throws IOException {
+        ArchiveEntryIndex index = new ArchiveEntryIndex();
+        Entry jcrRoot = archive.getJcrRoot();
+        if (jcrRoot == null) {
+            return index;
+        }
+
+        Deque<PathAndEntry> entriesToVisit = new ArrayDeque<PathAndEntry>();
+        entriesToVisit.push(new PathAndEntry("/" + "/" + jcrRoot.getName(), jcrRoot));
+        while (!entriesToVisit.isEmpty()) {
+            PathAndEntry pathAndEntry = entriesToVisit.pop();
+            Entry entry = pathAndEntry.entry;
+            if (!entry.isDirectory()) {
+                index.add(pathAndEntry.path, entry);
+            }
+            Collection<? extends Entry> children = entry.getChildren();
+            for (Entry child : children) {
+                entriesToVisit.push(new PathAndEntry(pathAndEntry.path + "/" + child.getName(), child));
+            }
+        }
+        return index;
+    }
+
+    /** @param path the path of the file entry in the archive (starting with {@link #JCR_ROOT_PATH}) */
+    void add(String path, Entry entry) {
+        IndexedEntry indexedEntry = new IndexedEntry(path, entry, toJcrPath(path), path.endsWith(XML_SUFFIX));
+        entries.add(indexedEntry);
+        if (path.endsWith(ApplySystemEnvInstallHook.TEMPLATE_SUFFIX)) {
+            templateEntries.add(indexedEntry);
+        }
+    }
+
+    /** @see #toJcrPath(String, boolean) */
+    static String toJcrPath(String entryPath) {
+        return toJcrPath(entryPath, false);
+    }
+
+    /** Maps an archive path to the JCR path without using regular expressions: strips the jcr_root prefix and the DocView file
+     * extensions (.content.xml resp. .xml), removes the .dir suffix of directories holding the properties of files and decodes the
+     * platform names (e.g. _jcr_content to jcr:content).
+     * 
+     * @param entryPath the path in the archive, with or without jcr_root prefix
+     * @param directory true if the path is the path of a directory entry */
+    static String toJcrPath(String entryPath, boolean directory) {
+        String path = entryPath.startsWith(JCR_ROOT_PATH) ? entryPath.substring(JCR_ROOT_PATH.length()) : entryPath;
+        boolean lastSegmentIsDirectory = directory;
+        // directories have no DocView file extension
+        if (!directory && path.endsWith(DOCVIEW_FILE_SUFFIX)) {
+            path = path.substring(0, path.length() - DOCVIEW_FILE_SUFFIX.length());
+            lastSegmentIsDirectory = true;
+        } else if (!directory && path.endsWith(XML_SUFFIX)) {
+            path = path.substring(0, path.length() - XML_SUFFIX.length());
+        }
+
+        StringBuilder jcrPath = new StringBuilder(path.length());
+        int segmentStart = 0;
+        while (segmentStart < path.length()) {
+            int segmentEnd = path.indexOf('/', segmentStart);
+            boolean isDirectory = segmentEnd >= 0 || lastSegmentIsDirectory;
+            if (segmentEnd < 0) {
+                segmentEnd = path.length();
+            }
+            if (segmentEnd > segmentStart) {
+                String segment = path.substring(segmentStart, segmentEnd);
+                if (isDirectory && segment.endsWith(DIR_SUFFIX) && segment.length() > DIR_SUFFIX.length()) {
+                    segment = segment.substring(0, segment.length() - DIR_SUFFIX.length());
+                }
+                jcrPath.append('/').append(PlatformNameFormat.getRepositoryName(segment));
+            }
+            segmentStart = segmentEnd + 1;
+        }
+        return jcrPath.toString();
+    }
+
+    /** @return all file entries in the order of the archive walk */
+    List<IndexedEntry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    /** @return all file entries with a name ending with .TEMPLATE */
+    List<IndexedEntry> getTemplateEntries() {
+        return Collections.unmodifiableList(templateEntries);
+    }
+
+    /** @return the number of file entries */
+    int size() {
+        return entries.size();
+    }
+
+    static final class IndexedEntry {
+        final String path;
+        final Entry entry;
+        final String jcrPath;
+        // DocView files also contain the content of descendant nodes
+        final boolean docView;
+
+        IndexedEntry(String path, Entry entry, String jcrPath, boolean docView) {
+            this.path = path;
+            this.entry = entry;
+            this.jcrPath = jcrPath;
+            this.docView = docView;
+        }
+    }
+
+    private static final class PathAndEntry {
+        final String path;
+        final Entry entry;
+
+        PathAndEntry(String path, Entry entry) {
+            this.path = path;
+            this.entry = entry;
+        }
+    }
+
+}
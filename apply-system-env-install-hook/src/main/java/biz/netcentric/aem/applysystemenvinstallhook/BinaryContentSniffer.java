@@ -0,0 +1,152 @@
+/*
+ * (C) Copyright 2018 Netcentric, A Cognizant Digital Business.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.aem.applysystemenvinstallhook;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/** Detects binary content (images, PDFs, archives etc.) from the first bytes of a file to skip it before decoding it as text.
+ *
+ * Content is considered binary if it starts with a well-known magic number, contains a NUL byte or if more than 10% of the bytes are
+ * control characters or invalid UTF-8 sequences (allowing for some ISO-8859-1 chars in otherwise ASCII text). Magic numbers that only
+ * consist of printable ASCII chars (like "%PDF") can also be the start of a text file, hence they additionally require at least one
+ * control character or invalid UTF-8 sequence. */
+final class BinaryContentSniffer {
+
+    static final int SNIFF_LENGTH = 512;
+
+    private static final byte[][] MAGIC_NUMBERS = new byte[][] {
+            { (byte) 0x89, 'P', 'N', 'G' }, // PNG
+            { (byte) 0xFF, (byte) 0xD8, (byte) 0xFF }, // JPEG
+            { 'P', 'K', 3, 4 }, // ZIP (also jar, docx, xlsx etc.)
+            { 0x1F, (byte) 0x8B }, // GZIP
+            { 'I', 'I', '*', 0 }, // TIFF (little endian)
+            { 'M', 'M', 0, '*' }, // TIFF (big endian)
+            { (byte) 0xCA, (byte) 0xFE, (byte) 0xBA, (byte) 0xBE }, // Java class
+            { '7', 'z', (byte) 0xBC, (byte) 0xAF }, // 7-Zip
+            { (byte) 0xD0, (byte) 0xCF, 0x11, (byte) 0xE0 } // MS Office (legacy)
+    };
+
+    // magic numbers that are valid ASCII text
+    private static final byte[][] TEXT_MAGIC_NUMBERS = new byte[][] {
+            { 'G', 'I', 'F', '8' }, // GIF
+            { '%', 'P', 'D', 'F' }, // PDF
+            { 'R', 'I', 'F', 'F' }, // WEBP, AVI, WAV
+            { 'I', 'D', '3' }, // MP3
+            { 'O', 'g', 'g', 'S' }, // OGG
+            { 'w', 'O', 'F', 'F' }, // WOFF
+            { 'w', 'O', 'F', '2' } // WOFF2
+    };
+
+    private static final byte[] ISO_BMFF_TYPE = { 'f', 't', 'y', 'p' }; // MP4, MOV, HEIC etc. (at offset 4, also valid ASCII text)
+
+    private BinaryContentSniffer() {
+    }
+
+    /** Reads the first bytes of the stream and resets it.
+     * 
+     * @param input stream that supports {@link InputStream#mark(int)}
+     * @return true if the content is binary */
+    static boolean isBinary(InputStream input) throws IOException {
+        if (!input.markSupported()) {
+            throw new IllegalArgumentException("Input stream has to support mark/reset");
+        }
+        byte[] head = new byte[SNIFF_LENGTH];
+        input.mark(SNIFF_LENGTH);
+        int length = 0;
+        try {
+            int read;
+            while (length < head.length && (read = input.read(head, length, head.length - length)) != -1) {
+                length += read;
+            }
+        } finally {
+            input.reset();
+        }
+        return isBinary(head, length);
+    }
+
+    static boolean isBinary(byte[] head, int length) {
+        for (byte[] magicNumber : MAGIC_NUMBERS) {
+            if (startsWith(head, length, 0, magicNumber)) {
+                return true;
+            }
+        }
+        boolean textMagicNumber = startsWith(head, length, 4, ISO_BMFF_TYPE);
+        for (byte[] magicNumber : TEXT_MAGIC_NUMBERS) {
+            if (startsWith(head, length, 0, magicNumber)) {
+                textMagicNumber = true;
+            }
+        }
+
+        int suspiciousBytes = 0;
+        int i = 0;
+        while (i < length) {
+            int b = head[i] & 0xFF;
+            if (b == 0) {
+                return true;
+            } else if (b < 0x20) {
+                if (b != '\t' && b != '\n' && b != '\r' && b != '\f' && b != 0x1B) {
+                    suspiciousBytes++;
+                }
+                i++;
+            } else if (b < 0x80) {
+                i++;
+            } else {
+                int sequenceLength = utf8SequenceLength(head, length, i);
+                if (sequenceLength > 0) {
+                    i += sequenceLength;
+                } else if (sequenceLength == 0) {
+                    // sequence cut off by the end of the sniffed bytes
+                    break;
+                } else {
+                    suspiciousBytes++;
+                    i++;
+                }
+            }
+        }
+        return textMagicNumber ? suspiciousBytes > 0 : suspiciousBytes * 10 > length;
+    }
+
+    /** @return the length of the valid UTF-8 sequence starting at pos, 0 if it is truncated by the end of the buffer, -1 if invalid */
+    private static int utf8SequenceLength(byte[] bytes, int length, int pos) {
+        int b = bytes[pos] & 0xFF;
+        int sequenceLength;
+        if (b >= 0xC2 && b <= 0xDF) {
+            sequenceLength = 2;
+        } else if (b >= 0xE0 && b <= 0xEF) {
+            sequenceLength = 3;
+        } else if (b >= 0xF0 && b <= 0xF4) {
+            sequenceLength = 4;
+        } else {
+            return -1;
+        }
+        for (int i = 1; i < sequenceLength; i++) {
+            if (pos + i >= length) {
+                return 0;
+            }
+            if ((bytes[pos + i] & 0xC0) != 0x80) {
+                return -1;
+            }
+        }
+        return sequenceLength;
+    }
+
+    private static boolean startsWith(byte[] bytes, int length, int offset, byte[] prefix) {
+        if (length < offset + prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (bytes[offset + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
@@ -9,7 +9,12 @@
 package biz.netcentric.aem.applysystemenvinstallhook;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+
+import javax.jcr.Session;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.jackrabbit.vault.packaging.InstallContext;
@@ -23,34 +28,70 @@ import biz.netcentric.aem.applysystemenvinstallhook.sources.ZooKeeperVarsSource;
 public class CombinedVariablesSource extends VariablesSource {
 
     public static CombinedVariablesSource forSources(List<String> sourceNames, InstallHookLogger logger, InstallContext context) {
+        return forSources(sourceNames, logger, context.getSession());
+    }
+
+    public static CombinedVariablesSource forSources(List<String> sourceNames, InstallHookLogger logger, Session session) {
+        return forSources(sourceNames, logger, session, false);
+    }
+
+    /** @param useCache whether to use {@link VariablesSourceCache}, only useful if the hook classes are used for multiple packages */
+    public static CombinedVariablesSource forSources(List<String> sourceNames, InstallHookLogger logger, Session session,
+            boolean useCache) {
         List<VariablesSource> sources = new ArrayList<VariablesSource>();
+        Map<String, Long> sourceLoadTimes = new LinkedHashMap<String, Long>();
         for (String string : sourceNames) {
+            VariablesSource cachedSource = useCache ? VariablesSourceCache.get(string) : null;
+            if (cachedSource != null) {
+                logger.log("Using cached source " + cachedSource.getName());
+                sources.add(cachedSource);
+                continue;
+            }
+
+            long cacheVersion = VariablesSourceCache.getVersion();
+            long startTime = System.nanoTime();
+            VariablesSource source;
             if(string.equals(OsEnvVarsSource.NAME)) {
-                sources.add(new OsEnvVarsSource());
+                source = new OsEnvVarsSource();
 
             } else if (string.equals(SystemPropertiesVarsSource.NAME)) {
-                sources.add(new SystemPropertiesVarsSource());
+                source = new SystemPropertiesVarsSource();
 
             } else if (string.equals(JcrVarsSource.NAME)) {
-                sources.add(new JcrVarsSource(logger, context));
+                source = new JcrVarsSource(logger, session);
 
             } else if(string.equals(ZooKeeperVarsSource.NAME)) {
-                sources.add(new ZooKeeperVarsSource(logger));
+                source = new ZooKeeperVarsSource(logger);
 
             } else {
                 logger.log("Could not find source "+string+" ignoring");
+                continue;
+            }
+            sourceLoadTimes.put(string, (System.nanoTime() - startTime) / 1000000);
+            sources.add(source);
+            if (useCache) {
+                VariablesSourceCache.put(string, source, cacheVersion);
             }
         }
-        return new CombinedVariablesSource(StringUtils.join(sourceNames,", "), sources);
+        CombinedVariablesSource combinedSource = new CombinedVariablesSource(StringUtils.join(sourceNames,", "), sources);
+        combinedSource.sourceLoadTimes.putAll(sourceLoadTimes);
+        return combinedSource;
     }
 
     final List<VariablesSource> sources = new ArrayList<VariablesSource>();
 
+    // load time in ms by source name (only sources not taken from the cache)
+    private final Map<String, Long> sourceLoadTimes = new LinkedHashMap<String, Long>();
+
     CombinedVariablesSource(String name, List<VariablesSource> sources) {
         super(name, null);
         this.sources.addAll(sources);
     }
 
+    Map<String, Long> getSourceLoadTimes() {
+        return Collections.unmodifiableMap(sourceLoadTimes);
+    }
+
     public NamedValue get(String varName) {
         for (VariablesSource source : sources) {
             NamedValue entry = source.get(varName);
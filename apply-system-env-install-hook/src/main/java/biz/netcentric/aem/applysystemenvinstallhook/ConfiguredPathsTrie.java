@@ -0,0 +1,117 @@
+/*
+ * (C) Copyright 2018 Netcentric, A Cognizant Digital Business.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.aem.applysystemenvinstallhook;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/** The paths of package property applySystemEnvForPaths compiled into a trie of path segments. Each node records whether the node is
+ * adjusted as a whole (path without @) or which of its properties are adjusted (path@property).
+ *
+ * Matching a path walks the trie segment by segment, so it scales with the depth of the path and not with the number of configured
+ * paths. */
+class ConfiguredPathsTrie {
+
+    private static final char PATH_SEPARATOR = '/';
+    private static final char PROPERTY_SEPARATOR = '@';
+
+    private final TrieNode root = new TrieNode();
+
+    static ConfiguredPathsTrie compile(List<String> jcrPathsToBeAdjusted) {
+        ConfiguredPathsTrie trie = new ConfiguredPathsTrie();
+        for (String jcrPathToBeAdjusted : jcrPathsToBeAdjusted) {
+            trie.add(jcrPathToBeAdjusted);
+        }
+        return trie;
+    }
+
+    private void add(String jcrPathToBeAdjusted) {
+        int propertySeparatorPos = jcrPathToBeAdjusted.indexOf(PROPERTY_SEPARATOR);
+        String nodePath = propertySeparatorPos >= 0 ? jcrPathToBeAdjusted.substring(0, propertySeparatorPos) : jcrPathToBeAdjusted;
+
+        TrieNode node = root;
+        int segmentStart = 0;
+        while (segmentStart <= nodePath.length()) {
+            int segmentEnd = nextSegmentEnd(nodePath, segmentStart);
+            if (segmentEnd > segmentStart) {
+                String segment = nodePath.substring(segmentStart, segmentEnd);
+                TrieNode child = node.children.get(segment);
+                if (child == null) {
+                    child = new TrieNode();
+                    node.children.put(segment, child);
+                }
+                node = child;
+            }
+            segmentStart = segmentEnd + 1;
+        }
+
+        if (propertySeparatorPos >= 0) {
+            node.properties.add(jcrPathToBeAdjusted.substring(propertySeparatorPos + 1));
+        } else {
+            node.wholeNode = true;
+        }
+    }
+
+    /** @param jcrPath the JCR path of a node or file
+     * @param aggregate true if the content of the descendants is contained as well (DocView file)
+     * @return true if the path is at or below a node configured as a whole, if properties of the path are configured or if the
+     *         path is an aggregate containing configured descendants */
+    boolean matches(String jcrPath, boolean aggregate) {
+        TrieNode node = find(jcrPath);
+        return node != null && (node.wholeNode || !node.properties.isEmpty() || (aggregate && !node.children.isEmpty()));
+    }
+
+    /** @return true if the path is at or below a node configured as a whole (then all of its properties and descendants are adjusted) */
+    boolean matchesSubtree(String jcrPath) {
+        TrieNode node = find(jcrPath);
+        return node != null && node.wholeNode;
+    }
+
+    /** @return true if the given property of the node is adjusted (the node is at or below a node configured as a whole or the
+     *         property is configured) */
+    boolean matchesProperty(String nodePath, String propertyName) {
+        TrieNode node = find(nodePath);
+        return node != null && (node.wholeNode || node.properties.contains(propertyName));
+    }
+
+    // returns the first node configured as a whole on the way to the path, the node of the path or null if the path is not in the trie
+    private TrieNode find(String jcrPath) {
+        TrieNode node = root;
+        if (node.wholeNode) {
+            return node;
+        }
+        int segmentStart = 0;
+        while (segmentStart <= jcrPath.length()) {
+            int segmentEnd = nextSegmentEnd(jcrPath, segmentStart);
+            if (segmentEnd > segmentStart) {
+                node = node.children.get(jcrPath.substring(segmentStart, segmentEnd));
+                if (node == null || node.wholeNode) {
+                    return node;
+                }
+            }
+            segmentStart = segmentEnd + 1;
+        }
+        return node;
+    }
+
+    private static int nextSegmentEnd(String path, int segmentStart) {
+        int segmentEnd = path.indexOf(PATH_SEPARATOR, segmentStart);
+        return segmentEnd >= 0 ? segmentEnd : path.length();
+    }
+
+    private static final class TrieNode {
+        final Map<String, TrieNode> children = new HashMap<String, TrieNode>();
+        final SortedSet<String> properties = new TreeSet<String>();
+        boolean wholeNode = false;
+    }
+
+}
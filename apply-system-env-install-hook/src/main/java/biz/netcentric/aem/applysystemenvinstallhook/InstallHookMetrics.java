@@ -0,0 +1,99 @@
+/*
+ * (C) Copyright 2018 Netcentric, A Cognizant Digital Business.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.aem.applysystemenvinstallhook;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.management.Attribute;
+import javax.management.Descriptor;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.modelmbean.DescriptorSupport;
+import javax.management.modelmbean.ModelMBeanAttributeInfo;
+import javax.management.modelmbean.ModelMBeanInfoSupport;
+import javax.management.modelmbean.RequiredModelMBean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Collects the metrics of all installs in an MBean registered at the platform MBean server (registered on first use).
+ *
+ * FileVault loads the hook classes with a separate class loader for every package, hence the MBean must not be an instance of a hook
+ * class (it would keep the class loader of the first installed package and all its classes in memory for as long as the MBean is
+ * registered). The MBean is a {@link RequiredModelMBean} that keeps the values in its attribute descriptors, both only JDK classes. */
+final class InstallHookMetrics {
+    private static final Logger LOG = LoggerFactory.getLogger(InstallHookMetrics.class);
+
+    static final String OBJECT_NAME = "biz.netcentric.aem.sysenv:type=Apply System Env Install Hook";
+
+    static final String ATTR_RUN_COUNT = "RunCount";
+    static final String ATTR_LAST_RUN_PACKAGE_ID = "LastRunPackageId";
+    static final String ATTR_LAST_RUN = "LastRun";
+    static final String ATTR_TOTALS = "Totals";
+
+    private InstallHookMetrics() {
+    }
+
+    /** Publishes the metrics of a run to the MBean (as registered by any class loader). Failures are only logged. */
+    static void publish(String packageId, InstallRunMetrics runMetrics) {
+        Map<String, Long> run = runMetrics.toMap();
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(OBJECT_NAME);
+            // the string literal is the same instance for the hook classes of all class loaders
+            synchronized (OBJECT_NAME) {
+                if (!mBeanServer.isRegistered(objectName)) {
+                    mBeanServer.registerMBean(createMBean(), objectName);
+                }
+
+                @SuppressWarnings("unchecked")
+                Map<String, Long> totals = new TreeMap<String, Long>((Map<String, Long>) mBeanServer.getAttribute(objectName, ATTR_TOTALS));
+                for (Map.Entry<String, Long> metric : run.entrySet()) {
+                    Long total = totals.get(metric.getKey());
+                    totals.put(metric.getKey(), total != null ? total + metric.getValue() : metric.getValue());
+                }
+                long runCount = (Long) mBeanServer.getAttribute(objectName, ATTR_RUN_COUNT);
+
+                mBeanServer.setAttribute(objectName, new Attribute(ATTR_RUN_COUNT, runCount + 1));
+                mBeanServer.setAttribute(objectName, new Attribute(ATTR_LAST_RUN_PACKAGE_ID, packageId));
+                mBeanServer.setAttribute(objectName, new Attribute(ATTR_LAST_RUN, Collections.unmodifiableMap(run)));
+                mBeanServer.setAttribute(objectName, new Attribute(ATTR_TOTALS, Collections.unmodifiableMap(totals)));
+            }
+        } catch (Exception e) {
+            LOG.warn("Could not publish metrics of " + packageId + ": " + e, e);
+        }
+    }
+
+    private static RequiredModelMBean createMBean() throws JMException {
+        ModelMBeanAttributeInfo[] attributes = new ModelMBeanAttributeInfo[] {
+                attribute(ATTR_RUN_COUNT, Long.class, 0L, "Number of installs and re-applies recorded"),
+                attribute(ATTR_LAST_RUN_PACKAGE_ID, String.class, "", "Id of the package of the last run"),
+                attribute(ATTR_LAST_RUN, Map.class, Collections.emptyMap(), "Metrics of the last run"),
+                attribute(ATTR_TOTALS, Map.class, Collections.emptyMap(), "Metrics of all runs summed up")
+        };
+        return new RequiredModelMBean(new ModelMBeanInfoSupport(RequiredModelMBean.class.getName(),
+                "Metrics of the Apply System Env Install Hook", attributes, null, null, null));
+    }
+
+    private static ModelMBeanAttributeInfo attribute(String name, Class<?> type, Object initialValue, String description) {
+        Descriptor descriptor = new DescriptorSupport();
+        descriptor.setField("name", name);
+        descriptor.setField("descriptorType", "attribute");
+        // the value in the descriptor never gets stale (there is no getter method to refresh it from)
+        descriptor.setField("currencyTimeLimit", "0");
+        descriptor.setField("value", initialValue);
+        // writable to be updated by publish()
+        return new ModelMBeanAttributeInfo(name, type.getName(), description, true, true, false, descriptor);
+    }
+
+}
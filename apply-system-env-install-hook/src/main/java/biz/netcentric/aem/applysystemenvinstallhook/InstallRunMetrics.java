@@ -0,0 +1,47 @@
+/*
+ * (C) Copyright 2018 Netcentric, A Cognizant Digital Business.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.aem.applysystemenvinstallhook;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** Metrics of one install (both phases) resp. re-apply, published to {@link InstallHookMetrics} at the end. Counters for items are plain
+ * fields as they are incremented for every visited item. Times are recorded in ms. */
+class InstallRunMetrics {
+
+    static final String SOURCE_LOAD_TIME_PREFIX = "sourceLoadTimeMs.";
+    static final String SUBSTITUTIONS_PREFIX = "substitutions.";
+
+    long nodesVisited = 0;
+    long propertiesVisited = 0;
+    long fileBytesProcessed = 0;
+    long propertyCharsProcessed = 0;
+
+    private final Map<String, Long> values = new LinkedHashMap<String, Long>();
+
+    void add(String name, long value) {
+        Long currentValue = values.get(name);
+        values.put(name, currentValue != null ? currentValue + value : value);
+    }
+
+    /** Adds the time since the given start time (as returned by {@link System#nanoTime()}). */
+    void addTimeSince(String name, long startNanos) {
+        add(name, (System.nanoTime() - startNanos) / 1000000);
+    }
+
+    Map<String, Long> toMap() {
+        Map<String, Long> map = new LinkedHashMap<String, Long>(values);
+        map.put("nodesVisited", nodesVisited);
+        map.put("propertiesVisited", propertiesVisited);
+        map.put("fileBytesProcessed", fileBytesProcessed);
+        map.put("propertyCharsProcessed", propertyCharsProcessed);
+        return map;
+    }
+
+}
@@ -0,0 +1,286 @@
+/*
+ * (C) Copyright 2018 Netcentric, A Cognizant Digital Business.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.aem.applysystemenvinstallhook;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.CharEncoding;
+import org.apache.commons.lang.StringUtils;
+import org.apache.jackrabbit.vault.fs.io.Archive;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import biz.netcentric.aem.applysystemenvinstallhook.ArchiveEntryIndex.IndexedEntry;
+import biz.netcentric.aem.applysystemenvinstallhook.VariablesMerger.EnvVarDeclaration;
+
+/** Pre-flight check for package property failForMissingEnvVars: finds variables that are used in the package without default but cannot
+ * be found in any source.
+ *
+ * Candidate entries are matched against the configured paths and the templates of the plan (see {@link ConfiguredPathsTrie}) using an
+ * index of the archive (see {@link ArchiveEntryIndex}) first, then they are scanned either sequentially or on a bounded fork-join pool.
+ * Of DocView files that are not adjusted as a whole (e.g. the .content.xml of an ancestor of a configured path), only the variables of
+ * adjusted properties are taken into account. Lookups and logging always happen on the calling thread, hence the report is the same
+ * regardless of the parallelism. */
+class MissingEnvVarsCheck {
+    private static final Logger LOG = LoggerFactory.getLogger(MissingEnvVarsCheck.class);
+
+    private final InstallHookLogger logger;
+    private final VariablesMerger variablesMerger;
+    private final int parallelism;
+    private final SubstitutionPlanBuilder docViewParser;
+
+    MissingEnvVarsCheck(InstallHookLogger logger, VariablesMerger variablesMerger, int parallelism) {
+        this.logger = logger;
+        this.variablesMerger = variablesMerger;
+        this.docViewParser = new SubstitutionPlanBuilder(variablesMerger);
+        this.parallelism = Math.max(1, Math.min(parallelism, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /** @param plan the plan built from the same archive, its index of the archive entries is used and DocView files already parsed for it
+     *            are not read again (may be null)
+     * @return the missing variables (sorted by name) mapped to the sorted paths they are used in, an empty map if all variables can be
+     *         resolved */
+    SortedMap<String, SortedSet<String>> findMissingEnvVars(Archive archive, List<String> jcrPathsToBeAdjusted, SubstitutionPlan plan,
+            VariablesSource variablesSource) throws IOException {
+
+        // the templates found in DocView files are adjusted in phase INSTALLED as well
+        List<String> adjustedPaths = new ArrayList<String>(jcrPathsToBeAdjusted);
+        if (plan != null) {
+            adjustedPaths.addAll(plan.getTemplatePaths());
+        }
+        ConfiguredPathsTrie configuredPaths = ConfiguredPathsTrie.compile(adjustedPaths);
+
+        ArchiveEntryIndex entryIndex = plan != null && plan.getEntryIndex() != null ? plan.getEntryIndex()
+                : ArchiveEntryIndex.build(archive);
+        List<IndexedEntry> candidates = collectCandidates(entryIndex, configuredPaths);
+        LOG.debug("Found {} candidate entries (of {} entries) to check for missing variables", candidates.size(), entryIndex.size());
+
+        List<ScanResult> results = scan(archive, plan, configuredPaths, candidates);
+
+        SortedMap<String, SortedSet<String>> missingEnvVars = new TreeMap<String, SortedSet<String>>();
+        for (ScanResult result : results) {
+            if (result.error != null) {
+                logger.log("Could not read " + result.path + " as text, skipping (" + result.error + ")");
+                continue;
+            }
+            if (result.binary) {
+                LOG.debug("Skipped binary entry {}", result.path);
+                variablesMerger.countSkippedBinaryEntry();
+                continue;
+            }
+            for (String varName : result.varsWithoutDefault) {
+                if (variablesSource.get(varName) == null) {
+                    SortedSet<String> paths = missingEnvVars.get(varName);
+                    if (paths == null) {
+                        paths = new TreeSet<String>();
+                        missingEnvVars.put(varName, paths);
+                    }
+                    paths.add(result.path);
+                }
+            }
+        }
+        return missingEnvVars;
+    }
+
+    void logReport(SortedMap<String, SortedSet<String>> missingEnvVars, VariablesSource variablesSource) {
+        for (Map.Entry<String, SortedSet<String>> missingEnvVar : missingEnvVars.entrySet()) {
+            logger.log("Variable '" + missingEnvVar.getKey() + "' is used without declaring a default and it could not be found in sources: "
+                    + variablesSource.getName() + " (used in " + StringUtils.join(missingEnvVar.getValue(), ", ") + ")");
+        }
+    }
+
+    private List<IndexedEntry> collectCandidates(ArchiveEntryIndex entryIndex, ConfiguredPathsTrie configuredPaths) {
+        // sorted by path and without duplicates (an entry may be matched by a configured path and be a template at the same time)
+        SortedMap<String, IndexedEntry> candidates = new TreeMap<String, IndexedEntry>();
+        for (IndexedEntry entry : entryIndex.getEntries()) {
+            if (configuredPaths.matches(entry.jcrPath, entry.docView)) {
+                candidates.put(entry.path, entry);
+            }
+        }
+        for (IndexedEntry candidate : entryIndex.getTemplateEntries()) {
+            candidates.put(candidate.path, candidate);
+        }
+        return new ArrayList<IndexedEntry>(candidates.values());
+    }
+
+    private List<ScanResult> scan(final Archive archive, final SubstitutionPlan plan, final ConfiguredPathsTrie configuredPaths,
+            List<IndexedEntry> candidates) {
+        List<ScanResult> results = new ArrayList<ScanResult>(candidates.size());
+        if (parallelism == 1 || candidates.size() < 2) {
+            for (IndexedEntry candidate : candidates) {
+                results.add(scan(archive, plan, configuredPaths, candidate));
+            }
+            return results;
+        }
+
+        LOG.debug("Scanning {} entries with parallelism {}", candidates.size(), parallelism);
+        List<Callable<ScanResult>> tasks = new ArrayList<Callable<ScanResult>>(candidates.size());
+        for (final IndexedEntry candidate : candidates) {
+            tasks.add(new Callable<ScanResult>() {
+                @Override
+                public ScanResult call() {
+                    return scan(archive, plan, configuredPaths, candidate);
+                }
+            });
+        }
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            for (Future<ScanResult> future : pool.invokeAll(tasks)) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while checking for missing variables", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Could not check for missing variables: " + e.getCause(), e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+        return results;
+    }
+
+    private ScanResult scan(Archive archive, SubstitutionPlan plan, ConfiguredPathsTrie configuredPaths, IndexedEntry candidate) {
+        // a DocView file may also contain nodes and properties that are not adjusted
+        ConfiguredPathsTrie propertyFilter = candidate.docView && !configuredPaths.matchesSubtree(candidate.jcrPath) ? configuredPaths
+                : null;
+        SortedMap<String, Map<String, List<EnvVarDeclaration>>> parsedEnvVars = plan != null
+                ? plan.getEnvVarDeclarationsOfEntry(candidate.path) : null;
+        if (parsedEnvVars != null) {
+            LOG.debug("Using variables of file {} as parsed for the substitution plan", candidate.path);
+            return new ScanResult(candidate.path, getVarsWithoutDefault(parsedEnvVars, propertyFilter), null, false);
+        }
+
+        LOG.debug("Reading file {}", candidate.path);
+        String fileContent;
+        try {
+            byte[] bytes;
+            // not all archive implementations support concurrent reads (e.g. the temp file of ZipStreamArchive), hence the entry is read
+            // once under the lock (only its head if it is binary) and pre-scanned, decoded and parsed outside of it
+            synchronized (archive) {
+                bytes = readUnlessBinary(openInputStream(archive, candidate));
+            }
+            if (bytes == null) {
+                return ScanResult.binary(candidate.path);
+            }
+            // most entries do not contain any variables, those are not decoded
+            if (PlaceholderPreScanner.indexOfPlaceholderStart(bytes, 0, bytes.length) < 0) {
+                return new ScanResult(candidate.path, Collections.<String> emptyList(), null, false);
+            }
+            if (propertyFilter != null) {
+                parsedEnvVars = parseDocView(bytes, candidate);
+                if (parsedEnvVars != null) {
+                    return new ScanResult(candidate.path, getVarsWithoutDefault(parsedEnvVars, propertyFilter), null, false);
+                }
+            }
+            fileContent = new String(bytes, CharEncoding.UTF_8);
+        } catch (Exception e) {
+            return new ScanResult(candidate.path, null, e.toString(), false);
+        }
+
+        return new ScanResult(candidate.path, getVarsWithoutDefault(variablesMerger.getEnvVarDeclarations(fileContent)), null, false);
+    }
+
+    // returns null if the file is no DocView file or cannot be parsed, then all of its variables are checked
+    private SortedMap<String, Map<String, List<EnvVarDeclaration>>> parseDocView(byte[] bytes, IndexedEntry candidate) {
+        try {
+            return docViewParser.parseEnvVarDeclarations(new ByteArrayInputStream(bytes), candidate.jcrPath);
+        } catch (Exception e) {
+            LOG.debug("Could not parse DocView file " + candidate.path + ", checking all of its variables: " + e, e);
+            return null;
+        }
+    }
+
+    /** @param propertyFilter the paths to take the variables of properties from or null to take all variables */
+    private static List<String> getVarsWithoutDefault(SortedMap<String, Map<String, List<EnvVarDeclaration>>> envVarDeclarations,
+            ConfiguredPathsTrie propertyFilter) {
+        List<EnvVarDeclaration> adjustedEnvVarDeclarations = new ArrayList<EnvVarDeclaration>();
+        for (Map.Entry<String, Map<String, List<EnvVarDeclaration>>> node : envVarDeclarations.entrySet()) {
+            for (Map.Entry<String, List<EnvVarDeclaration>> property : node.getValue().entrySet()) {
+                if (propertyFilter == null || propertyFilter.matchesProperty(node.getKey(), property.getKey())) {
+                    adjustedEnvVarDeclarations.addAll(property.getValue());
+                } else {
+                    LOG.trace("Ignoring variables of {}@{} as the property is not adjusted", node.getKey(), property.getKey());
+                }
+            }
+        }
+        return getVarsWithoutDefault(adjustedEnvVarDeclarations);
+    }
+
+    private static List<String> getVarsWithoutDefault(List<EnvVarDeclaration> envVarDeclarations) {
+        List<String> varsWithoutDefault = new ArrayList<String>();
+        for (EnvVarDeclaration envVar : envVarDeclarations) {
+            if (envVar.defaultVal != null) {
+                LOG.debug("Default value given for variable {}", envVar.name);
+                continue;
+            }
+            varsWithoutDefault.add(envVar.name);
+        }
+        return varsWithoutDefault;
+    }
+
+    /** @return the content of the stream or null if it is binary (then only its head is read), the stream is closed */
+    private static byte[] readUnlessBinary(InputStream input) throws IOException {
+        try {
+            byte[] head = new byte[BinaryContentSniffer.SNIFF_LENGTH];
+            int headLength = IOUtils.read(input, head);
+            if (BinaryContentSniffer.isBinary(head, headLength)) {
+                return null;
+            }
+            ByteArrayOutputStream content = new ByteArrayOutputStream(Math.max(PlaceholderPreScanner.BUFFER_SIZE, headLength));
+            content.write(head, 0, headLength);
+            IOUtils.copy(input, content);
+            return content.toByteArray();
+        } finally {
+            IOUtils.closeQuietly(input);
+        }
+    }
+
+    private static InputStream openInputStream(Archive archive, IndexedEntry candidate) throws IOException {
+        InputStream input = archive.getInputSource(candidate.entry).getByteStream();
+        if (input == null) {
+            throw new IllegalStateException("Could not get input stream from entry " + candidate.path);
+        }
+        return input;
+    }
+
+    private static final class ScanResult {
+        final String path;
+        final List<String> varsWithoutDefault;
+        final String error;
+        final boolean binary;
+
+        ScanResult(String path, List<String> varsWithoutDefault, String error, boolean binary) {
+            this.path = path;
+            this.varsWithoutDefault = varsWithoutDefault;
+            this.error = error;
+            this.binary = binary;
+        }
+
+        static ScanResult binary(String path) {
+            return new ScanResult(path, null, null, true);
+        }
+    }
+
+}
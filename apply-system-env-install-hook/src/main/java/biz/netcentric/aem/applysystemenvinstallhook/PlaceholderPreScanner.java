@@ -0,0 +1,127 @@
+/*
+ * (C) Copyright 2018 Netcentric, A Cognizant Digital Business.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.aem.applysystemenvinstallhook;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Searches raw bytes for the start of a placeholder ("${") without decoding them. As both chars are ASCII, their bytes cannot be part of
+ * a multi-byte sequence in UTF-8 (or any other ASCII compatible charset), hence content without the byte sequence cannot contain a
+ * placeholder. The same applies to other ASCII markers like ".TEMPLATE" (see {@link #contains(InputStream, byte[])}).
+ *
+ * The read buffers are pooled to not allocate a buffer per file. */
+final class PlaceholderPreScanner {
+
+    static final int BUFFER_SIZE = 8192;
+    private static final int MAX_POOLED_BUFFERS = 16;
+
+    private static final byte MARKER_FIRST_BYTE = (byte) PlaceholderScanner.VAR_MARKER;
+    private static final byte MARKER_SECOND_BYTE = (byte) '{';
+
+    private static final Queue<byte[]> BUFFER_POOL = new ConcurrentLinkedQueue<byte[]>();
+    private static final AtomicInteger POOLED_BUFFERS_COUNT = new AtomicInteger();
+
+    private PlaceholderPreScanner() {
+    }
+
+    /** Reads the stream until the start of a placeholder is found or the end of the stream is reached (the stream is not closed).
+     * 
+     * @return true if the content contains "${" */
+    static boolean containsPlaceholderStart(InputStream input) throws IOException {
+        byte[] buffer = acquireBuffer();
+        try {
+            boolean previousWasMarker = false;
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                if (read == 0) {
+                    continue;
+                }
+                if (previousWasMarker && buffer[0] == MARKER_SECOND_BYTE) {
+                    return true;
+                }
+                if (indexOfPlaceholderStart(buffer, 0, read) >= 0) {
+                    return true;
+                }
+                previousWasMarker = buffer[read - 1] == MARKER_FIRST_BYTE;
+            }
+            return false;
+        } finally {
+            releaseBuffer(buffer);
+        }
+    }
+
+    /** Reads the stream until the given byte sequence of ASCII chars (shorter than the read buffer) is found or the end of the stream is
+     * reached (the stream is not closed).
+     * 
+     * @return true if the content contains the byte sequence */
+    static boolean contains(InputStream input, byte[] search) throws IOException {
+        byte[] buffer = acquireBuffer();
+        try {
+            // the end of the previous read is kept at the start of the buffer to find sequences split across two reads
+            int kept = 0;
+            int read;
+            while ((read = input.read(buffer, kept, buffer.length - kept)) != -1) {
+                int length = kept + read;
+                if (indexOf(buffer, length, search) >= 0) {
+                    return true;
+                }
+                kept = Math.min(search.length - 1, length);
+                System.arraycopy(buffer, length - kept, buffer, 0, kept);
+            }
+            return false;
+        } finally {
+            releaseBuffer(buffer);
+        }
+    }
+
+    /** @return the index of the first "${" in the given range or -1 if there is none */
+    static int indexOfPlaceholderStart(byte[] bytes, int offset, int length) {
+        int end = offset + length - 1;
+        for (int i = offset; i < end; i++) {
+            if (bytes[i] == MARKER_FIRST_BYTE && bytes[i + 1] == MARKER_SECOND_BYTE) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** @return the index of the first occurrence of search in the first length bytes or -1 if there is none */
+    static int indexOf(byte[] bytes, int length, byte[] search) {
+        outer: for (int i = 0; i <= length - search.length; i++) {
+            for (int j = 0; j < search.length; j++) {
+                if (bytes[i + j] != search[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static byte[] acquireBuffer() {
+        byte[] buffer = BUFFER_POOL.poll();
+        if (buffer != null) {
+            POOLED_BUFFERS_COUNT.decrementAndGet();
+            return buffer;
+        }
+        return new byte[BUFFER_SIZE];
+    }
+
+    private static void releaseBuffer(byte[] buffer) {
+        if (POOLED_BUFFERS_COUNT.incrementAndGet() <= MAX_POOLED_BUFFERS) {
+            BUFFER_POOL.offer(buffer);
+        } else {
+            POOLED_BUFFERS_COUNT.decrementAndGet();
+        }
+    }
+
+}
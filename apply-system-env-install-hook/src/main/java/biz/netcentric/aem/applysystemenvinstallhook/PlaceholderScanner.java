@@ -0,0 +1,124 @@
+/*
+ * (C) Copyright 2018 Netcentric, A Cognizant Digital Business.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.aem.applysystemenvinstallhook;
+
+/** Single-pass scanner for variable placeholders in the form <code>${name}</code> or <code>${name:default}</code>.
+ *
+ * Matches exactly what the regex <code>\$\{([^\}]+)\}</code> would match, but without the regex engine: text between placeholders is
+ * never copied, the scanner only tracks indexes into the given text. */
+final class PlaceholderScanner {
+
+    static final String VAR_START = "${";
+    static final char VAR_MARKER = '$';
+    static final char VAR_OPEN = '{';
+    static final char VAR_CLOSE = '}';
+    static final char DEFAULT_SEPARATOR = ':';
+
+    private final CharSequence text;
+    private final String string; // set if text is a String to use the (intrinsified) String.indexOf() methods
+    private final int limit;
+
+    private int pos;
+
+    private int start = -1;
+    private int end = -1;
+    private int separator = -1;
+    private int unterminatedStart = -1;
+
+    PlaceholderScanner(CharSequence text) {
+        this.text = text;
+        this.string = text instanceof String ? (String) text : null;
+        this.limit = text.length();
+    }
+
+    /** Advances to the next placeholder.
+     *
+     * @return true if a placeholder was found (use {@link #start()}, {@link #end()}, {@link #name()} and {@link #defaultValue()} to access
+     *         it), false if there are no more placeholders in the text */
+    boolean find() {
+        int candidate = indexOfVarStart(pos);
+        while (candidate >= 0) {
+            int close = indexOf(VAR_CLOSE, candidate + 2);
+            if (close < 0) {
+                // no closing bracket in the rest of the text means there cannot be any further placeholder either
+                unterminatedStart = candidate;
+                break;
+            }
+            if (close > candidate + 2) {
+                start = candidate;
+                end = close + 1;
+                separator = indexOf(DEFAULT_SEPARATOR, candidate + 2, close);
+                pos = end;
+                return true;
+            }
+            // "${}" is not a placeholder, retry one char further (same as the regex would do)
+            candidate = indexOfVarStart(candidate + 1);
+        }
+        pos = limit;
+        start = -1;
+        end = -1;
+        separator = -1;
+        return false;
+    }
+
+    /** @return index of the first "${" without closing bracket once {@link #find()} returned false or -1 if there is none (when reading
+     *         from a stream, the placeholder might be completed by the next chunk) */
+    int unterminatedStart() {
+        return unterminatedStart;
+    }
+
+    /** @return index of the '$' of the current placeholder */
+    int start() {
+        return start;
+    }
+
+    /** @return index after the closing '}' of the current placeholder */
+    int end() {
+        return end;
+    }
+
+    /** @return the variable name of the current placeholder */
+    String name() {
+        return text.subSequence(start + 2, separator >= 0 ? separator : end - 1).toString();
+    }
+
+    /** @return the default value of the current placeholder or null if none is declared */
+    String defaultValue() {
+        return separator >= 0 ? text.subSequence(separator + 1, end - 1).toString() : null;
+    }
+
+    private int indexOfVarStart(int from) {
+        if (string != null) {
+            return string.indexOf(VAR_START, from);
+        }
+        for (int i = from; i < limit - 1; i++) {
+            if (text.charAt(i) == VAR_MARKER && text.charAt(i + 1) == VAR_OPEN) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int indexOf(char c, int from) {
+        return indexOf(c, from, limit);
+    }
+
+    private int indexOf(char c, int from, int to) {
+        if (string != null && to == limit) {
+            return string.indexOf(c, from);
+        }
+        for (int i = from; i < to; i++) {
+            if (text.charAt(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+}
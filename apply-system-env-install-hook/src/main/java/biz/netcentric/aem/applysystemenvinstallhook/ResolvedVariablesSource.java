@@ -0,0 +1,62 @@
+/*
+ * (C) Copyright 2018 Netcentric, A Cognizant Digital Business.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.aem.applysystemenvinstallhook;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Flat resolution table for a {@link CombinedVariablesSource}, built once per install.
+ *
+ * All variable names of all sources are resolved up front (applying the source precedence and the name normalization of the sources), a
+ * lookup is a single hash probe returning a shared {@link NamedValue}. Names that are not keys of any source (e.g. a name with dots that
+ * is found in OS env vars with underscores, or a variable that cannot be found at all) are resolved on first access and memoized. */
+class ResolvedVariablesSource extends VariablesSource {
+    private static final Logger LOG = LoggerFactory.getLogger(ResolvedVariablesSource.class);
+
+    private static final NamedValue MISS = new NamedValue(null, null, null);
+
+    private final CombinedVariablesSource combinedSource;
+    private final ConcurrentMap<String, NamedValue> table = new ConcurrentHashMap<String, NamedValue>();
+
+    ResolvedVariablesSource(CombinedVariablesSource combinedSource) {
+        super(combinedSource.getName(), null);
+        this.combinedSource = combinedSource;
+
+        for (VariablesSource source : combinedSource.sources) {
+            for (String varName : source.getVariableNames()) {
+                if (!table.containsKey(varName)) {
+                    resolve(varName);
+                }
+            }
+        }
+        LOG.debug("Resolved {} variables from {}", table.size(), getName());
+    }
+
+    @Override
+    public NamedValue get(String varName) {
+        NamedValue value = table.get(varName);
+        if (value == null) {
+            value = resolve(varName);
+        }
+        return value != MISS ? value : null;
+    }
+
+    private NamedValue resolve(String varName) {
+        NamedValue value = combinedSource.get(varName);
+        if (value == null) {
+            value = MISS;
+        }
+        table.put(varName, value);
+        return value;
+    }
+
+}
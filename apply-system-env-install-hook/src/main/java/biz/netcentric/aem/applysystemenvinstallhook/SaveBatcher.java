@@ -0,0 +1,88 @@
+/*
+ * (C) Copyright 2018 Netcentric, A Cognizant Digital Business.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.aem.applysystemenvinstallhook;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Saves the session of phase INSTALLED in batches (package property applySystemEnvSaveBatchSize) to keep the transient space and the
+ * commit sizes bounded for large template trees.
+ *
+ * A batch is only saved in {@link #saveIfBatchFull()}, which is called after each node has been adjusted completely (hence no node is
+ * persisted with variables that are not replaced yet, while a large template tree may be saved in multiple batches). If saving a batch
+ * fails, its changes are discarded and the exception is rethrown. Batches saved before remain persisted - reinstalling the package applies
+ * all variables again. */
+class SaveBatcher {
+    private static final Logger LOG = LoggerFactory.getLogger(SaveBatcher.class);
+
+    private final Session session;
+    private final InstallHookLogger logger;
+    private final int batchSize;
+
+    private int modifiedItemsCount = 0;
+    private int savedItemsCount = 0;
+    private int savedBatchesCount = 0;
+    private long saveTimeNanos = 0;
+
+    /** @param batchSize number of modified items after which the session is saved, 0 or less to only save once in {@link #saveAll()} */
+    SaveBatcher(Session session, InstallHookLogger logger, int batchSize) {
+        this.session = session;
+        this.logger = logger;
+        this.batchSize = batchSize;
+    }
+
+    void itemsModified(int count) {
+        modifiedItemsCount += count;
+    }
+
+    void saveIfBatchFull() throws RepositoryException {
+        if (batchSize > 0 && modifiedItemsCount >= batchSize) {
+            save();
+        }
+    }
+
+    void saveAll() throws RepositoryException {
+        save();
+        if (savedBatchesCount > 1) {
+            logger.log("Saved " + savedItemsCount + " modified items in " + savedBatchesCount + " batches");
+        }
+    }
+
+    int getSavedBatchesCount() {
+        return savedBatchesCount;
+    }
+
+    long getSaveTimeMillis() {
+        return saveTimeNanos / 1000000;
+    }
+
+    private void save() throws RepositoryException {
+        long startTime = System.nanoTime();
+        try {
+            session.save();
+        } catch (RepositoryException e) {
+            session.refresh(false);
+            if (savedBatchesCount > 0) {
+                logger.log("Could not save batch " + (savedBatchesCount + 1) + " (" + modifiedItemsCount + " modified items), "
+                        + savedItemsCount + " modified items of previous batches remain saved: " + e);
+            }
+            throw e;
+        } finally {
+            saveTimeNanos += System.nanoTime() - startTime;
+        }
+        LOG.debug("Saved batch {} with {} modified items", savedBatchesCount + 1, modifiedItemsCount);
+        savedItemsCount += modifiedItemsCount;
+        savedBatchesCount++;
+        modifiedItemsCount = 0;
+    }
+
+}
@@ -0,0 +1,138 @@
+/*
+ * (C) Copyright 2018 Netcentric, A Cognizant Digital Business.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.aem.applysystemenvinstallhook;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apache.jackrabbit.vault.packaging.PackageId;
+
+import biz.netcentric.aem.applysystemenvinstallhook.VariablesMerger.EnvVarDeclaration;
+
+/** Substitution plan as built from the package archive in phase PREPARE (see {@link SubstitutionPlanBuilder}) and executed in phase
+ * INSTALLED: the .TEMPLATE nodes contained in the package and for each node in a template tree the properties that contain variables.
+ *
+ * Templates that could not be fully analysed in PREPARE are marked as not planned - for those all properties are adjusted in INSTALLED
+ * (as it is done without a plan). */
+class SubstitutionPlan {
+
+    private final PackageId packageId;
+
+    private final SortedSet<String> templatePaths = new TreeSet<String>();
+    private final Set<String> unplannedTemplatePaths = new TreeSet<String>();
+    private boolean discoveryComplete = true;
+
+    // node path -> property name -> variables used in property
+    private final SortedMap<String, Map<String, List<EnvVarDeclaration>>> propertiesWithVariables = new TreeMap<String, Map<String, List<EnvVarDeclaration>>>();
+
+    // archive path -> node path -> property name -> variables used in DocView file, for all files parsed completely
+    private final Map<String, SortedMap<String, Map<String, List<EnvVarDeclaration>>>> parsedEntries = new HashMap<String, SortedMap<String, Map<String, List<EnvVarDeclaration>>>>();
+
+    private ArchiveEntryIndex entryIndex = null;
+
+    SubstitutionPlan(PackageId packageId) {
+        this.packageId = packageId;
+    }
+
+    PackageId getPackageId() {
+        return packageId;
+    }
+
+    void addTemplatePath(String templatePath) {
+        templatePaths.add(templatePath);
+    }
+
+    void markAsUnplanned(String templatePath) {
+        unplannedTemplatePaths.add(templatePath);
+    }
+
+    void markDiscoveryIncomplete() {
+        discoveryComplete = false;
+    }
+
+    /** @return false if not all .TEMPLATE nodes could be found in the archive (they have to be searched in the repository then) */
+    boolean isDiscoveryComplete() {
+        return discoveryComplete;
+    }
+
+    void addPropertyWithVariables(String nodePath, String propertyName, List<EnvVarDeclaration> envVarDeclarations) {
+        Map<String, List<EnvVarDeclaration>> properties = propertiesWithVariables.get(nodePath);
+        if (properties == null) {
+            properties = new TreeMap<String, List<EnvVarDeclaration>>();
+            propertiesWithVariables.put(nodePath, properties);
+        }
+        properties.put(propertyName, envVarDeclarations);
+    }
+
+    void setEntryIndex(ArchiveEntryIndex entryIndex) {
+        this.entryIndex = entryIndex;
+    }
+
+    /** @return the index of the archive entries as built together with the plan or null if the plan was not built from an archive */
+    ArchiveEntryIndex getEntryIndex() {
+        return entryIndex;
+    }
+
+    void addParsedEntry(String archivePath, SortedMap<String, Map<String, List<EnvVarDeclaration>>> envVarDeclarations) {
+        parsedEntries.put(archivePath, envVarDeclarations);
+    }
+
+    /** @return node paths mapped to the names of their properties that contain variables in the given archive entry (as path in the
+     *         archive) or null if the entry has not been parsed */
+    SortedMap<String, Map<String, List<EnvVarDeclaration>>> getEnvVarDeclarationsOfEntry(String archivePath) {
+        return parsedEntries.get(archivePath);
+    }
+
+    /** @return the paths of all .TEMPLATE nodes in the package, sorted (parents before children) */
+    SortedSet<String> getTemplatePaths() {
+        return Collections.unmodifiableSortedSet(templatePaths);
+    }
+
+    /** @return true if the properties with variables are known for the whole tree of the given template */
+    boolean isPlanned(String templatePath) {
+        if (!templatePaths.contains(templatePath)) {
+            return false;
+        }
+        for (String unplannedTemplatePath : unplannedTemplatePaths) {
+            if (isSameOrDescendant(templatePath, unplannedTemplatePath) || isSameOrDescendant(unplannedTemplatePath, templatePath)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** @return node paths of the given tree mapped to the names of their properties that contain variables */
+    SortedMap<String, Map<String, List<EnvVarDeclaration>>> getPropertiesWithVariables(String treePath) {
+        // all descendants are sorted between "path/" and "path0" ('0' being the char after '/')
+        SortedMap<String, Map<String, List<EnvVarDeclaration>>> result = new TreeMap<String, Map<String, List<EnvVarDeclaration>>>(
+                propertiesWithVariables.subMap(treePath + "/", treePath + "0"));
+        if (propertiesWithVariables.containsKey(treePath)) {
+            result.put(treePath, propertiesWithVariables.get(treePath));
+        }
+        return result;
+    }
+
+    static boolean isSameOrDescendant(String path, String ancestorPath) {
+        return path.equals(ancestorPath) || path.startsWith(ancestorPath + "/");
+    }
+
+    @Override
+    public String toString() {
+        return "[SubstitutionPlan for " + packageId + ": templates=" + templatePaths + " unplanned=" + unplannedTemplatePaths
+                + " discoveryComplete=" + discoveryComplete + " nodes with variables=" + propertiesWithVariables.keySet() + "]";
+    }
+
+}
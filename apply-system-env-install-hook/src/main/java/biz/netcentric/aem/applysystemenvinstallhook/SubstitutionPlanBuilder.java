@@ -0,0 +1,301 @@
+/*
+ * (C) Copyright 2018 Netcentric, A Cognizant Digital Business.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.aem.applysystemenvinstallhook;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.jackrabbit.util.ISO9075;
+import org.apache.jackrabbit.vault.fs.io.Archive;
+import org.apache.jackrabbit.vault.fs.io.Archive.Entry;
+import org.apache.jackrabbit.vault.packaging.PackageId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import biz.netcentric.aem.applysystemenvinstallhook.VariablesMerger.EnvVarDeclaration;
+
+/** Builds the {@link SubstitutionPlan} from the package archive in phase PREPARE.
+ *
+ * .TEMPLATE nodes are found from directory and file names as well as from element names in DocView files (only DocView files below a
+ * template, of a template or containing the string ".TEMPLATE" at all are parsed, the others are only searched for the bytes of
+ * ".TEMPLATE" without buffering them). Of XML files that are no DocView files (no "&lt;jcr:root" in the first bytes) only the first bytes
+ * are read. For nodes in template trees, the properties containing variables are taken from the DocView attributes. */
+class SubstitutionPlanBuilder {
+    private static final Logger LOG = LoggerFactory.getLogger(SubstitutionPlanBuilder.class);
+
+    private static final String DOCVIEW_ROOT_ELEMENT = "jcr:root";
+    private static final String XMLNS_PREFIX = "xmlns";
+    private static final String CONTENT_XML = ".content.xml";
+    private static final String EXTENSION_XML = ".xml";
+
+    private static final byte[] TEMPLATE_SUFFIX_BYTES = ApplySystemEnvInstallHook.TEMPLATE_SUFFIX.getBytes();
+    private static final byte[] DOCVIEW_ROOT_BYTES = ("<" + DOCVIEW_ROOT_ELEMENT).getBytes();
+    // the root element of a DocView file is expected within the first bytes (after the XML declaration and comments)
+    private static final int DOCVIEW_HEAD_LENGTH = 8192;
+
+    private enum XmlContent {
+        NO_DOCVIEW, DOCVIEW_WITHOUT_TEMPLATE, DOCVIEW_WITH_TEMPLATE
+    }
+
+    private final VariablesMerger variablesMerger;
+    private final SAXParserFactory saxParserFactory;
+
+    SubstitutionPlanBuilder(VariablesMerger variablesMerger) {
+        this.variablesMerger = variablesMerger;
+        saxParserFactory = SAXParserFactory.newInstance();
+        saxParserFactory.setNamespaceAware(false);
+        try {
+            saxParserFactory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+        } catch (Exception e) {
+            LOG.debug("Could not disallow doctype declarations: " + e, e);
+        }
+    }
+
+    SubstitutionPlan build(PackageId packageId, Archive archive) throws IOException {
+        SubstitutionPlan plan = new SubstitutionPlan(packageId);
+        // the entries are indexed in the same walk over the archive, for the check of package property failForMissingEnvVars
+        ArchiveEntryIndex entryIndex = new ArchiveEntryIndex();
+        Entry jcrRoot = archive.getJcrRoot();
+        if (jcrRoot != null) {
+            for (Entry entry : jcrRoot.getChildren()) {
+                visit(archive, "", entry, null, plan, entryIndex);
+            }
+        }
+        plan.setEntryIndex(entryIndex);
+        LOG.debug("Built {}", plan);
+        return plan;
+    }
+
+    private void visit(Archive archive, String parentPlatformPath, Entry entry, String enclosingTemplatePath, SubstitutionPlan plan,
+            ArchiveEntryIndex entryIndex) {
+        String platformPath = parentPlatformPath + "/" + entry.getName();
+        String name = entry.getName();
+
+        if (entry.isDirectory()) {
+            String nodePath = ArchiveEntryIndex.toJcrPath(platformPath, true);
+            String templatePath = enclosingTemplatePath;
+            if (nodePath.endsWith(ApplySystemEnvInstallHook.TEMPLATE_SUFFIX)) {
+                plan.addTemplatePath(nodePath);
+                if (templatePath == null) {
+                    templatePath = nodePath;
+                }
+            }
+            for (Entry child : entry.getChildren()) {
+                visit(archive, platformPath, child, templatePath, plan, entryIndex);
+            }
+            return;
+        }
+
+        entryIndex.add(ArchiveEntryIndex.JCR_ROOT_PATH + platformPath, entry);
+        if (name.equals(CONTENT_XML)) {
+            String nodePath = ArchiveEntryIndex.toJcrPath(platformPath);
+            parseDocViewIfRelevant(archive, entry, platformPath, nodePath, enclosingTemplatePath, plan);
+        } else if (name.endsWith(EXTENSION_XML)) {
+            // either a DocView file for node 'name' without .xml or a regular xml file (its name never ends with .TEMPLATE)
+            String nodePath = ArchiveEntryIndex.toJcrPath(platformPath);
+            // the DocView file of a template node only has the suffix in its file name, it is parsed to add the template (as its root)
+            String templatePath = enclosingTemplatePath;
+            if (templatePath == null && nodePath.endsWith(ApplySystemEnvInstallHook.TEMPLATE_SUFFIX)) {
+                templatePath = nodePath;
+            }
+            parseDocViewIfRelevant(archive, entry, platformPath, nodePath, templatePath, plan);
+        } else {
+            addIfTemplateFile(ArchiveEntryIndex.toJcrPath(platformPath), plan);
+        }
+    }
+
+    private void addIfTemplateFile(String nodePath, SubstitutionPlan plan) {
+        if (nodePath.endsWith(ApplySystemEnvInstallHook.TEMPLATE_SUFFIX)) {
+            plan.addTemplatePath(nodePath);
+        }
+    }
+
+    private void parseDocViewIfRelevant(Archive archive, Entry entry, String platformPath, String nodePath, String enclosingTemplatePath,
+            SubstitutionPlan plan) {
+        DocViewHandler handler = null;
+        try {
+            XmlContent xmlContent = sniffXmlContent(archive, entry);
+            if (xmlContent == XmlContent.NO_DOCVIEW) {
+                return;
+            }
+            if (enclosingTemplatePath == null && xmlContent == XmlContent.DOCVIEW_WITHOUT_TEMPLATE) {
+                // no template in this file
+                return;
+            }
+
+            LOG.debug("Parsing DocView {} for node {}", platformPath, nodePath);
+            handler = new DocViewHandler(nodePath, enclosingTemplatePath != null, plan);
+            SAXParser parser = newSAXParser();
+            InputStream input = archive.openInputStream(entry);
+            try {
+                parser.parse(input, handler);
+            } finally {
+                IOUtils.closeQuietly(input);
+            }
+            plan.addParsedEntry(ArchiveEntryIndex.JCR_ROOT_PATH + platformPath, handler.envVarDeclarations);
+        } catch (Exception e) {
+            if (handler != null && !handler.isDocView) {
+                return;
+            }
+            LOG.warn("Could not parse " + platformPath + " in phase PREPARE, template nodes will be analysed in phase INSTALLED: " + e, e);
+            if (enclosingTemplatePath != null) {
+                // might not have been added yet if it is the root node of this file
+                plan.addTemplatePath(enclosingTemplatePath);
+                plan.markAsUnplanned(enclosingTemplatePath);
+            } else {
+                // file might contain .TEMPLATE nodes that were not found
+                plan.markDiscoveryIncomplete();
+            }
+        }
+    }
+
+    /** Parses a DocView file for the variables it uses only (without adding anything to a plan).
+     * 
+     * @return node paths mapped to the names of their properties that contain variables or null if the content is no DocView file */
+    SortedMap<String, Map<String, List<EnvVarDeclaration>>> parseEnvVarDeclarations(InputStream input, String rootNodePath)
+            throws IOException, SAXException, ParserConfigurationException {
+        DocViewHandler handler = new DocViewHandler(rootNodePath, false, null);
+        try {
+            newSAXParser().parse(input, handler);
+        } catch (SAXException e) {
+            if (!handler.isDocView) {
+                return null;
+            }
+            throw e;
+        }
+        return handler.envVarDeclarations;
+    }
+
+    private SAXParser newSAXParser() throws ParserConfigurationException, SAXException {
+        // the factory is not guaranteed to be thread-safe, the parsers it creates are used by one thread only
+        synchronized (saxParserFactory) {
+            return saxParserFactory.newSAXParser();
+        }
+    }
+
+    private static XmlContent sniffXmlContent(Archive archive, Entry entry) throws IOException {
+        InputStream input = new BufferedInputStream(archive.openInputStream(entry), DOCVIEW_HEAD_LENGTH);
+        try {
+            byte[] head = new byte[DOCVIEW_HEAD_LENGTH];
+            input.mark(DOCVIEW_HEAD_LENGTH);
+            int length = IOUtils.read(input, head);
+            if (PlaceholderPreScanner.indexOf(head, length, DOCVIEW_ROOT_BYTES) < 0) {
+                return XmlContent.NO_DOCVIEW;
+            }
+            input.reset();
+            return PlaceholderPreScanner.contains(input, TEMPLATE_SUFFIX_BYTES) ? XmlContent.DOCVIEW_WITH_TEMPLATE
+                    : XmlContent.DOCVIEW_WITHOUT_TEMPLATE;
+        } finally {
+            IOUtils.closeQuietly(input);
+        }
+    }
+
+    private final class DocViewHandler extends DefaultHandler {
+
+        private final String rootNodePath;
+        private final boolean rootInTemplate;
+        private final SubstitutionPlan plan;
+
+        private final Deque<String> nodePaths = new ArrayDeque<String>();
+        private final Deque<Boolean> inTemplate = new ArrayDeque<Boolean>();
+
+        // all variables used in the file by node path and property name (also outside of templates), for the check of package property
+        // failForMissingEnvVars
+        private final SortedMap<String, Map<String, List<EnvVarDeclaration>>> envVarDeclarations = new TreeMap<String, Map<String, List<EnvVarDeclaration>>>();
+
+        private boolean isDocView = true;
+
+        /** @param plan the plan to add the templates and their properties to, null to only collect the variables */
+        DocViewHandler(String rootNodePath, boolean rootInTemplate, SubstitutionPlan plan) {
+            this.rootNodePath = rootNodePath;
+            this.rootInTemplate = rootInTemplate;
+            this.plan = plan;
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
+            String nodePath;
+            boolean nodeInTemplate;
+            if (nodePaths.isEmpty()) {
+                if (!DOCVIEW_ROOT_ELEMENT.equals(qName)) {
+                    isDocView = false;
+                    throw new SAXException("Not a DocView file (root element is " + qName + ")");
+                }
+                nodePath = rootNodePath;
+                nodeInTemplate = rootInTemplate;
+            } else {
+                nodePath = nodePaths.peek() + "/" + ISO9075.decode(qName);
+                nodeInTemplate = inTemplate.peek();
+            }
+            if (nodePath.endsWith(ApplySystemEnvInstallHook.TEMPLATE_SUFFIX)) {
+                if (plan != null) {
+                    plan.addTemplatePath(nodePath);
+                }
+                nodeInTemplate = true;
+            }
+            nodePaths.push(nodePath);
+            inTemplate.push(nodeInTemplate);
+
+            for (int i = 0; i < attributes.getLength(); i++) {
+                String attributeName = attributes.getQName(i);
+                if (attributeName.startsWith(XMLNS_PREFIX)) {
+                    continue;
+                }
+                String value = attributes.getValue(i);
+                List<EnvVarDeclaration> attributeEnvVarDeclarations = variablesMerger.getEnvVarDeclarations(value);
+                if (attributeEnvVarDeclarations.isEmpty()) {
+                    continue;
+                }
+                String propertyName = ISO9075.decode(attributeName);
+                addEnvVarDeclarations(nodePath, propertyName, attributeEnvVarDeclarations);
+                if (nodeInTemplate && plan != null) {
+                    plan.addPropertyWithVariables(nodePath, propertyName, attributeEnvVarDeclarations);
+                }
+            }
+        }
+
+        private void addEnvVarDeclarations(String nodePath, String propertyName, List<EnvVarDeclaration> attributeEnvVarDeclarations) {
+            Map<String, List<EnvVarDeclaration>> properties = envVarDeclarations.get(nodePath);
+            if (properties == null) {
+                properties = new TreeMap<String, List<EnvVarDeclaration>>();
+                envVarDeclarations.put(nodePath, properties);
+            }
+            // a node path can occur multiple times for same-name siblings
+            List<EnvVarDeclaration> propertyEnvVarDeclarations = properties.get(propertyName);
+            if (propertyEnvVarDeclarations == null) {
+                propertyEnvVarDeclarations = new ArrayList<EnvVarDeclaration>();
+                properties.put(propertyName, propertyEnvVarDeclarations);
+            }
+            propertyEnvVarDeclarations.addAll(attributeEnvVarDeclarations);
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) throws SAXException {
+            nodePaths.pop();
+            inTemplate.pop();
+        }
+    }
+
+}
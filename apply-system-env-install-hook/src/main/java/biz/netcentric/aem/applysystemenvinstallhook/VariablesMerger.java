@@ -9,108 +9,355 @@
 package biz.netcentric.aem.applysystemenvinstallhook;
 
 import java.util.ArrayList;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import biz.netcentric.aem.applysystemenvinstallhook.VariablesSource.NamedValue;
 
+/** Applies variables to texts and counts the replacements. The counters are thread-safe, so one instance can be used by multiple
+ * threads working on the same install. */
 public class VariablesMerger {
 
+    /** Controls how replacements are logged (package property applySystemEnvLogVerbosity). */
+    enum Verbosity {
+        /** one line per replaced variable (default) */
+        DETAIL,
+        /** one line per path with the number of replacements, logged at the end */
+        PATH,
+        /** one line per variable with its value and the number of usages, logged at the end */
+        VARIABLE,
+        /** only the replacement summary */
+        SUMMARY;
+
+        static Verbosity fromString(String value) {
+            for (Verbosity verbosity : values()) {
+                if (verbosity.name().equalsIgnoreCase(value.trim())) {
+                    return verbosity;
+                }
+            }
+            return null;
+        }
+    }
+
     private static final String DEFAULT_KEY = "default";
     private static final String NOTFOUND_KEY = "not found";
     private static final String EXTENSION_CONFIG = ".config";
 
-    private Map<String, Integer> counts = new LinkedHashMap<String, Integer>();
+    // when streaming, a "${" without closing bracket within this many chars is treated as literal text
+    static final int MAX_PLACEHOLDER_LENGTH = 8192;
+
+    // for verbosity PATH and VARIABLE, at most this many lines are logged
+    static final int MAX_AGGREGATED_LOG_LINES = 1000;
+
+    private final ConcurrentMap<String, AtomicInteger> counts = new ConcurrentHashMap<String, AtomicInteger>();
+
+    // properties and files written to the repository resp. skipped because substitution did not change them
+    private final AtomicInteger changedItemsCount = new AtomicInteger();
+    private final AtomicInteger unchangedItemsCount = new AtomicInteger();
+
+    // binary files not adjusted in the repository resp. package entries not scanned for missing variables
+    private final AtomicInteger skippedBinaryFilesCount = new AtomicInteger();
+    private final AtomicInteger skippedBinaryEntriesCount = new AtomicInteger();
+
+    // all variables used in the package (whether a value was found or not)
+    private final SortedSet<String> usedVariableNames = new ConcurrentSkipListSet<String>();
 
     private final InstallHookLogger logger;
 
+    private Verbosity verbosity = Verbosity.DETAIL;
+    // replacements by path for verbosity PATH
+    private final ConcurrentSkipListMap<String, AtomicInteger> replacementsByPath = new ConcurrentSkipListMap<String, AtomicInteger>();
+    // value, action and replacements by variable for verbosity VARIABLE
+    private final ConcurrentSkipListMap<String, VariableReplacements> replacementsByVariable = new ConcurrentSkipListMap<String, VariableReplacements>();
+
     public VariablesMerger(InstallHookLogger logger) {
         this.logger = logger;
 
         // ensure special keys are set
-        counts.put(DEFAULT_KEY, 0);
-        counts.put(NOTFOUND_KEY, 0);
+        counts.put(DEFAULT_KEY, new AtomicInteger());
+        counts.put(NOTFOUND_KEY, new AtomicInteger());
     }
 
     private void incrementCount(String key) {
-        Integer currentCountIntObj = counts.get(key);
-        int count = currentCountIntObj!=null? currentCountIntObj : 0;
-        counts.put(key, ++count);
+        AtomicInteger count = counts.get(key);
+        if (count == null) {
+            AtomicInteger newCount = new AtomicInteger();
+            count = counts.putIfAbsent(key, newCount);
+            if (count == null) {
+                count = newCount;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    void setVerbosity(Verbosity verbosity) {
+        this.verbosity = verbosity;
+    }
+
+    Verbosity getVerbosity() {
+        return verbosity;
+    }
+
+    void countChangedItem() {
+        changedItemsCount.incrementAndGet();
+    }
+
+    void countUnchangedItem() {
+        unchangedItemsCount.incrementAndGet();
+    }
+
+    void countSkippedBinaryFile() {
+        skippedBinaryFilesCount.incrementAndGet();
+    }
+
+    void countSkippedBinaryEntry() {
+        skippedBinaryEntriesCount.incrementAndGet();
     }
 
     List<EnvVarDeclaration> getEnvVarDeclarations(String text) {
 
         List<EnvVarDeclaration> varDeclarations = new ArrayList<EnvVarDeclaration>();
-        Matcher matcher = EnvVarDeclaration.VAR_PATTERN.matcher(text);
-        while (matcher.find()) {
-            EnvVarDeclaration envVarDeclaration = new EnvVarDeclaration(matcher.group(1));
-            varDeclarations.add(envVarDeclaration);
+        if (text.indexOf(PlaceholderScanner.VAR_START) < 0) {
+            return varDeclarations;
+        }
+        PlaceholderScanner scanner = new PlaceholderScanner(text);
+        while (scanner.find()) {
+            varDeclarations.add(new EnvVarDeclaration(scanner.name(), scanner.defaultValue()));
         }
         return varDeclarations;
     }
 
     String applyEnvVars(String text, VariablesSource env, String path) {
 
-        Matcher matcher = EnvVarDeclaration.VAR_PATTERN.matcher(text);
-        StringBuffer result = new StringBuffer();
-        while (matcher.find()) {
-            EnvVarDeclaration envVar = new EnvVarDeclaration(matcher.group(1));
-
-            String valueToBeUsed;
-            String action;
-            NamedValue entry = env.get(envVar.name);
-            
-            if (entry != null) {
-                valueToBeUsed = String.valueOf(entry.getValue());
-                incrementCount(entry.getSourceName());
-                action = "replaced from " + entry.getSourceName();
-            } else {
-                String effectiveDefaultVal;
-                if (envVar.defaultVal != null) {
-                    effectiveDefaultVal = envVar.defaultVal;
-                    incrementCount(DEFAULT_KEY);
-                    action = "default in package";
-                } else {
-                    // leave exactly what we matched as default if no default is given
-                    effectiveDefaultVal = matcher.group(0);
-                    incrementCount(NOTFOUND_KEY);
-                    action = "var not found (no default provided)";
+        if (text.indexOf(PlaceholderScanner.VAR_START) < 0) {
+            // most values do not contain any variables
+            return text;
+        }
+        PlaceholderScanner scanner = new PlaceholderScanner(text);
+        if (!scanner.find()) {
+            return text;
+        }
+
+        StringBuilder result = new StringBuilder(text.length() + 64);
+        int literalStart = 0;
+        boolean escapeForConfig = path.endsWith(EXTENSION_CONFIG);
+        String pathForLog = isLoggingPaths() ? path.replace(ApplySystemEnvInstallHook.TEMPLATE_SUFFIX, "") : null;
+        do {
+            result.append(text, literalStart, scanner.start());
+            appendValue(result, scanner, text, env, pathForLog, escapeForConfig);
+            literalStart = scanner.end();
+        } while (scanner.find());
+        result.append(text, literalStart, text.length());
+        return result.toString();
+    }
+
+    /** Applies the variables to a chunk of a larger text (see {@link VariablesSubstitutingReader}).
+     * 
+     * @param window the chunk of text not processed yet
+     * @param endOfInput whether the window contains the end of the text
+     * @param result the substituted text is appended to it
+     * @return the number of chars of the window that were processed, the rest has to be passed again together with the next chunk */
+    int applyEnvVars(CharSequence window, boolean endOfInput, VariablesSource env, String path, StringBuilder result) {
+
+        PlaceholderScanner scanner = new PlaceholderScanner(window);
+        boolean escapeForConfig = path.endsWith(EXTENSION_CONFIG);
+        String pathForLog = null;
+        int literalStart = 0;
+        while (scanner.find()) {
+            if (pathForLog == null && isLoggingPaths()) {
+                pathForLog = path.replace(ApplySystemEnvInstallHook.TEMPLATE_SUFFIX, "");
+            }
+            result.append(window, literalStart, scanner.start());
+            appendValue(result, scanner, window, env, pathForLog, escapeForConfig);
+            literalStart = scanner.end();
+        }
+
+        int processed = window.length();
+        if (!endOfInput) {
+            int unterminatedStart = scanner.unterminatedStart();
+            if (unterminatedStart >= 0) {
+                // keep the start of the placeholder for the next chunk unless it has become unreasonably long
+                processed = window.length() - unterminatedStart <= MAX_PLACEHOLDER_LENGTH ? unterminatedStart : unterminatedStart + 1;
+            } else if (window.length() > literalStart && window.charAt(window.length() - 1) == PlaceholderScanner.VAR_MARKER) {
+                processed = window.length() - 1;
+            }
+        }
+        result.append(window, literalStart, processed);
+        return processed;
+    }
+
+    private void appendValue(StringBuilder result, PlaceholderScanner scanner, CharSequence text, VariablesSource env, String pathForLog,
+            boolean escapeForConfig) {
+
+        String varName = scanner.name();
+        String defaultVal = scanner.defaultValue();
+        usedVariableNames.add(varName);
+
+        String valueToBeUsed;
+        String countKey;
+        NamedValue entry = env.get(varName);
+
+        if (entry != null) {
+            valueToBeUsed = String.valueOf(entry.getValue());
+            countKey = entry.getSourceName();
+        } else if (defaultVal != null) {
+            valueToBeUsed = defaultVal;
+            countKey = DEFAULT_KEY;
+        } else {
+            // leave exactly what we matched as default if no default is given
+            valueToBeUsed = text.subSequence(scanner.start(), scanner.end()).toString();
+            countKey = NOTFOUND_KEY;
+        }
+        incrementCount(countKey);
+        switch (verbosity) {
+        case DETAIL:
+            logger.log(pathForLog + ": " + varName + "=\"" + valueToBeUsed + "\" (" + describeAction(countKey) + ")");
+            break;
+        case PATH:
+            AtomicInteger pathCount = replacementsByPath.get(pathForLog);
+            if (pathCount == null) {
+                AtomicInteger newPathCount = new AtomicInteger();
+                pathCount = replacementsByPath.putIfAbsent(pathForLog, newPathCount);
+                if (pathCount == null) {
+                    pathCount = newPathCount;
                 }
-                valueToBeUsed = effectiveDefaultVal;
             }
-            logger.log(path.replace(ApplySystemEnvInstallHook.TEMPLATE_SUFFIX, "") + ": " + envVar.name + "=\"" + valueToBeUsed + "\" ("
-                    + action + ")");
+            pathCount.incrementAndGet();
+            break;
+        case VARIABLE:
+            VariableReplacements variableReplacements = replacementsByVariable.get(varName);
+            if (variableReplacements == null) {
+                VariableReplacements newVariableReplacements = new VariableReplacements(valueToBeUsed, describeAction(countKey));
+                variableReplacements = replacementsByVariable.putIfAbsent(varName, newVariableReplacements);
+                if (variableReplacements == null) {
+                    variableReplacements = newVariableReplacements;
+                }
+            }
+            variableReplacements.add(valueToBeUsed);
+            break;
+        default:
+            break;
+        }
+
+        if (escapeForConfig) {
+            appendEscapedForConfig(result, valueToBeUsed);
+        } else {
+            result.append(valueToBeUsed);
+        }
+    }
 
-            // escape characters '=', ' ', '\', '"' if target is `.config` file
-            if (path.endsWith(EXTENSION_CONFIG)) {
-                valueToBeUsed = valueToBeUsed.replaceAll("([\\\\=\\s\"])", "\\\\$1");
+    private static String describeAction(String countKey) {
+        if (DEFAULT_KEY.equals(countKey)) {
+            return "default in package";
+        } else if (NOTFOUND_KEY.equals(countKey)) {
+            return "var not found (no default provided)";
+        } else {
+            return "replaced from " + countKey;
+        }
+    }
+
+    // escape characters '=', whitespace, '\', '"' if target is `.config` file
+    private static void appendEscapedForConfig(StringBuilder result, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '=' || c == '"' || c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r') {
+                result.append('\\');
             }
+            result.append(c);
+        }
+    }
 
-            matcher.appendReplacement(result, Matcher.quoteReplacement(valueToBeUsed));
+    int getChangedItemsCount() {
+        return changedItemsCount.get();
+    }
+
+    int getUnchangedItemsCount() {
+        return unchangedItemsCount.get();
+    }
+
+    int getSkippedBinaryFilesCount() {
+        return skippedBinaryFilesCount.get();
+    }
+
+    int getSkippedBinaryEntriesCount() {
+        return skippedBinaryEntriesCount.get();
+    }
+
+    /** @return the number of substitutions by source name (sorted), including the special keys for defaults and variables not found */
+    SortedMap<String, Integer> getReplacementCounts() {
+        SortedMap<String, Integer> replacementCounts = new TreeMap<String, Integer>();
+        for (Map.Entry<String, AtomicInteger> count : counts.entrySet()) {
+            replacementCounts.put(count.getKey(), count.getValue().get());
         }
-        matcher.appendTail(result);
-        return result.toString();
+        return replacementCounts;
+    }
+
+    private boolean isLoggingPaths() {
+        return verbosity == Verbosity.DETAIL || verbosity == Verbosity.PATH;
+    }
+
+    /** Logs the replacements aggregated by path resp. by variable (only for verbosity PATH and VARIABLE), at most
+     * {@link #MAX_AGGREGATED_LOG_LINES} lines. */
+    void logAggregatedReplacements() {
+        int lineCount = 0;
+        if (verbosity == Verbosity.PATH) {
+            for (Map.Entry<String, AtomicInteger> pathCount : replacementsByPath.entrySet()) {
+                if (lineCount++ >= MAX_AGGREGATED_LOG_LINES) {
+                    break;
+                }
+                logger.log(pathCount.getKey() + ": " + pathCount.getValue().get() + " variables replaced");
+            }
+            logOmittedLines(replacementsByPath.size(), "paths");
+        } else if (verbosity == Verbosity.VARIABLE) {
+            for (Map.Entry<String, VariableReplacements> variableReplacements : replacementsByVariable.entrySet()) {
+                if (lineCount++ >= MAX_AGGREGATED_LOG_LINES) {
+                    break;
+                }
+                logger.log(variableReplacements.getKey() + "=" + variableReplacements.getValue());
+            }
+            logOmittedLines(replacementsByVariable.size(), "variables");
+        }
+    }
+
+    private void logOmittedLines(int total, String itemsName) {
+        if (total > MAX_AGGREGATED_LOG_LINES) {
+            logger.log("... (" + (total - MAX_AGGREGATED_LOG_LINES) + " more " + itemsName + " not listed)");
+        }
+    }
+
+    SortedSet<String> getUsedVariableNames() {
+        return usedVariableNames;
     }
 
     public String getReplacementSummary() {
         int total = 0;
         StringBuilder sb = new StringBuilder();
-        for(String key: counts.keySet()) {
+        SortedMap<String, Integer> replacementCounts = getReplacementCounts();
+        for (Map.Entry<String, Integer> replacementCount : replacementCounts.entrySet()) {
+            String key = replacementCount.getKey();
             if (DEFAULT_KEY.equals(key) || NOTFOUND_KEY.equals(key)) {
                 continue;
             }
-            int count = counts.get(key);
+            int count = replacementCount.getValue();
             total += count;
             sb.append("Replacement count for '" + key + "': " + count + "\n");
         }
-        int defaultUsedCount = counts.get(DEFAULT_KEY);
+        int defaultUsedCount = replacementCounts.get(DEFAULT_KEY);
         total += defaultUsedCount;
         sb.append("Count default value used: " + defaultUsedCount + "\n");
-        sb.append("Total variables replaced: " + total);
-        int notFoundCount = counts.get(NOTFOUND_KEY);
+        sb.append("Total variables replaced: " + total + "\n");
+        sb.append("Items changed: " + changedItemsCount.get() + ", unchanged (not written): " + unchangedItemsCount.get());
+        sb.append("\nBinary files skipped: " + skippedBinaryFilesCount.get() + " (package entries not checked for missing variables: "
+                + skippedBinaryEntriesCount.get() + ")");
+        int notFoundCount = replacementCounts.get(NOTFOUND_KEY);
         if (notFoundCount > 0) {
             sb.append("\nWARN: No value found for variable and no default given: " + notFoundCount);
         }
@@ -119,22 +366,36 @@ public class VariablesMerger {
     }
 
 
+    private static final class VariableReplacements {
+        private final String value;
+        private final String action;
+        private int count = 0;
+        private boolean differingValues = false;
+
+        VariableReplacements(String value, String action) {
+            this.value = value;
+            this.action = action;
+        }
+
+        synchronized void add(String otherValue) {
+            count++;
+            differingValues |= !value.equals(otherValue);
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "\"" + value + "\" (" + action + (differingValues ? ", other defaults used as well" : "") + ") replaced " + count + " times";
+        }
+    }
+
     public static class EnvVarDeclaration {
-        private static final Pattern VAR_PATTERN = Pattern.compile("\\$\\{([^\\}]+)\\}");
 
         public final String name;
         public final String defaultVal;
 
-        EnvVarDeclaration(String groupOneOfMatcher) {
-            String givenVarAndDefault = groupOneOfMatcher;
-            String[] bits = givenVarAndDefault.split(":", 2);
-
-            name = bits[0];
-            if (bits.length > 1) {
-                defaultVal = bits[1];
-            } else {
-                defaultVal = null;
-            }
+        EnvVarDeclaration(String name, String defaultVal) {
+            this.name = name;
+            this.defaultVal = defaultVal;
         }
 
     }
@@ -8,6 +8,8 @@
  */
 package biz.netcentric.aem.applysystemenvinstallhook;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Map;
 
 /** A source of config variables. */
@@ -40,6 +42,7 @@ public abstract class VariablesSource {
     }
 
     private final String name;
+    private boolean cacheable = true;
 
     protected final Map<String, String> variables;
 
@@ -49,13 +52,33 @@ public abstract class VariablesSource {
     }
 
     public NamedValue get(String varName) {
-        if (variables.containsKey(varName)) {
-            return new NamedValue(getName(), varName, variables.get(varName));
+        String effectiveName = normalizeName(varName);
+        if (variables.containsKey(effectiveName)) {
+            return new NamedValue(getName(), effectiveName, variables.get(effectiveName));
         } else {
             return null;
         }
     }
 
+    /** @return the name as it is looked up in this source for a variable name as used in a package */
+    protected String normalizeName(String varName) {
+        return varName;
+    }
+
+    /** @return the names of all variables provided by this source (as keys in this source, see {@link #normalizeName(String)}) */
+    public Collection<String> getVariableNames() {
+        return variables != null ? variables.keySet() : Collections.<String> emptySet();
+    }
+
+    /** @return false if the source could not be loaded properly and hence must not be cached in {@link VariablesSourceCache} */
+    public boolean isCacheable() {
+        return cacheable;
+    }
+
+    protected void setNotCacheable() {
+        this.cacheable = false;
+    }
+
     public String getName() {
         return name;
     }
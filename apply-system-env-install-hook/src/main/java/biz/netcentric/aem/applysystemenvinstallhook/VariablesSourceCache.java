@@ -0,0 +1,114 @@
+/*
+ * (C) Copyright 2018 Netcentric, A Cognizant Digital Business.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.aem.applysystemenvinstallhook;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Cache for loaded variable sources, to avoid loading the sources again for every package when the system-env-change-listener bundle
+ * re-applies the templates of multiple packages.
+ *
+ * The cache is kept per class loader of the hook classes. As FileVault loads the hook of each package install with its own class loader,
+ * it is only used by {@link ApplySystemEnvInstallHook#reapply(org.apache.jackrabbit.vault.packaging.VaultPackage, javax.jcr.Session,
+ * org.apache.jackrabbit.vault.fs.io.ImportOptions)} (that runs with the hook classes embedded in the bundle), package installs always
+ * load the sources. Entries expire after the TTL as given by system property applysysenv.sourceCache.ttl (in seconds, default 60, 0
+ * disables the cache), the bundle calls {@link #invalidate(String)} when it receives a change. Sources that depend on the installing
+ * user (JCR) are not cached. */
+public final class VariablesSourceCache {
+    private static final Logger LOG = LoggerFactory.getLogger(VariablesSourceCache.class);
+
+    public static final String SYS_PROP_TTL = "applysysenv.sourceCache.ttl";
+    private static final long DEFAULT_TTL_IN_SEC = 60;
+
+    private static final ConcurrentMap<String, CachedSource> CACHE = new ConcurrentHashMap<String, CachedSource>();
+    private static final AtomicLong VERSION = new AtomicLong();
+
+    private VariablesSourceCache() {
+    }
+
+    /** Discards all cached sources, sources currently being loaded are not used from the cache. */
+    public static void invalidate(String reason) {
+        // entries of an older version are never returned, hence entries put concurrently to clearing are harmless
+        VERSION.incrementAndGet();
+        CACHE.clear();
+        LOG.debug("Invalidated cached variable sources: {}", reason);
+    }
+
+    /** @return the current version of the cache, to be passed to {@link #put(String, VariablesSource, long)} after loading a source */
+    static long getVersion() {
+        return VERSION.get();
+    }
+
+    /** @return the cached source or null if the source is not cached or expired */
+    static VariablesSource get(String sourceName) {
+        CachedSource cachedSource = CACHE.get(sourceName);
+        if (cachedSource == null) {
+            return null;
+        }
+        if (cachedSource.version != VERSION.get() || System.currentTimeMillis() - cachedSource.loadedAt > getTtlInMs()) {
+            // only removes this very entry, not one that was put concurrently
+            CACHE.remove(sourceName, cachedSource);
+            return null;
+        }
+        return cachedSource.source;
+    }
+
+    /** Caches the given source unless it was invalidated since version was retrieved via {@link #getVersion()}. */
+    static void put(String sourceName, VariablesSource source, long version) {
+        if (!source.isCacheable() || getTtlInMs() <= 0) {
+            return;
+        }
+        CachedSource newSource = new CachedSource(source, version);
+        while (VERSION.get() == version) {
+            CachedSource cachedSource = CACHE.putIfAbsent(sourceName, newSource);
+            if (cachedSource == null) {
+                return;
+            }
+            if (cachedSource.version > version) {
+                // loaded after an invalidation that happened while this source was loaded
+                return;
+            }
+            if (CACHE.replace(sourceName, cachedSource, newSource)) {
+                return;
+            }
+        }
+        // invalidated while the source was loaded
+    }
+
+    private static long getTtlInMs() {
+        String ttl = System.getProperty(SYS_PROP_TTL);
+        long ttlInSec = DEFAULT_TTL_IN_SEC;
+        if (StringUtils.isNotBlank(ttl)) {
+            try {
+                ttlInSec = Long.parseLong(ttl.trim());
+            } catch (NumberFormatException e) {
+                LOG.warn("Invalid value '{}' for system property {}, using default {}", ttl, SYS_PROP_TTL, DEFAULT_TTL_IN_SEC);
+            }
+        }
+        return TimeUnit.SECONDS.toMillis(ttlInSec);
+    }
+
+    private static final class CachedSource {
+        final VariablesSource source;
+        final long version;
+        final long loadedAt = System.currentTimeMillis();
+
+        CachedSource(VariablesSource source, long version) {
+            this.source = source;
+            this.version = version;
+        }
+    }
+
+}
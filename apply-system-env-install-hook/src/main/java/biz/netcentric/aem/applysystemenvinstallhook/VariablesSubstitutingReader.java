@@ -0,0 +1,82 @@
+/*
+ * (C) Copyright 2018 Netcentric, A Cognizant Digital Business.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.aem.applysystemenvinstallhook;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/** Reader that applies the variables to the text of the underlying reader while it is read.
+ *
+ * Only a chunk of the text is held in memory at any time (plus an incomplete placeholder at the end of a chunk), hence large files can be
+ * adjusted with bounded heap usage. */
+class VariablesSubstitutingReader extends Reader {
+
+    private static final int DEFAULT_CHUNK_SIZE = 8192;
+
+    private final Reader source;
+    private final VariablesMerger variablesMerger;
+    private final VariablesSource env;
+    private final String path;
+
+    private final char[] chunk;
+    private final StringBuilder window;
+    private final StringBuilder output;
+    private int outputPos = 0;
+    private boolean endOfInput = false;
+
+    VariablesSubstitutingReader(Reader source, VariablesMerger variablesMerger, VariablesSource env, String path) {
+        this(source, variablesMerger, env, path, DEFAULT_CHUNK_SIZE);
+    }
+
+    VariablesSubstitutingReader(Reader source, VariablesMerger variablesMerger, VariablesSource env, String path, int chunkSize) {
+        this.source = source;
+        this.variablesMerger = variablesMerger;
+        this.env = env;
+        this.path = path;
+        this.chunk = new char[chunkSize];
+        this.window = new StringBuilder(chunkSize);
+        this.output = new StringBuilder(chunkSize);
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (outputPos >= output.length()) {
+            if (endOfInput) {
+                return -1;
+            }
+            output.setLength(0);
+            outputPos = 0;
+            fill();
+        }
+        int count = Math.min(len, output.length() - outputPos);
+        output.getChars(outputPos, outputPos + count, cbuf, off);
+        outputPos += count;
+        return count;
+    }
+
+    private void fill() throws IOException {
+        int read = source.read(chunk, 0, chunk.length);
+        if (read < 0) {
+            endOfInput = true;
+        } else {
+            window.append(chunk, 0, read);
+        }
+        int processed = variablesMerger.applyEnvVars(window, endOfInput, env, path, output);
+        window.delete(0, processed);
+    }
+
+    @Override
+    public void close() throws IOException {
+        source.close();
+    }
+
+}
@@ -31,10 +31,15 @@ public class JcrVarsSource extends VariablesSource {
     private static final String JCR_CONFIG_PATH = "/etc/system-env";
 
     public JcrVarsSource(InstallHookLogger logger, InstallContext context) {
+        this(logger, context.getSession());
+    }
+
+    public JcrVarsSource(InstallHookLogger logger, Session session) {
         super(NAME, new HashMap<String, String>());
+        // the values are read with the session of the install (the values visible to one user must not be served to others)
+        setNotCacheable();
 
         try {
-            Session session = context.getSession();
             Node node = session.getNode(JCR_CONFIG_PATH);
             PropertyIterator propertiesIt = node.getProperties();
             while (propertiesIt.hasNext()) {
@@ -22,12 +22,10 @@ public class OsEnvVarsSource extends VariablesSource {
     }
 
     @Override
-    public NamedValue get(String varName) {
+    protected String normalizeName(String varName) {
         // there cannot be "." in env vars... if the files in the package have dots as it is typically done, the env var can be provided
         // with _ instead of dot
-        String effectiveName = varName.replaceAll("\\.", "_");
-
-        return super.get(effectiveName);
+        return varName.replace('.', '_');
     }
 
 }
@@ -8,6 +8,7 @@
  */
 package biz.netcentric.aem.applysystemenvinstallhook.sources;
 
+import java.util.Collection;
 import java.util.Map;
 
 import biz.netcentric.aem.applysystemenvinstallhook.VariablesSource;
@@ -22,4 +23,10 @@ public class SystemPropertiesVarsSource extends VariablesSource {
         super(NAME, (Map) System.getProperties());
     }
 
+    @Override
+    public Collection<String> getVariableNames() {
+        // system properties may contain keys that are not strings
+        return System.getProperties().stringPropertyNames();
+    }
+
 }
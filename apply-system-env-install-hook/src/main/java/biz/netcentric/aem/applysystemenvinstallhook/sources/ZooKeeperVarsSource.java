@@ -8,9 +8,8 @@
  */
 package biz.netcentric.aem.applysystemenvinstallhook.sources;
 
-import java.io.ByteArrayInputStream;
 import java.util.HashMap;
-import java.util.Properties;
+import java.util.Map;
 
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
@@ -47,19 +46,21 @@ public class ZooKeeperVarsSource extends VariablesSource {
         try {
             long startTime = System.currentTimeMillis();
             logger.log(LOG, "Connecting to ZooKeeper at " + config.getZooKeeperHosts() + " ...");
-            byte[] data = new ZooKeeperLoader().loadData(config);
-
-            Properties properties = new Properties();
-            properties.load(new ByteArrayInputStream(data));
+            Map<String, String> properties = new ZooKeeperLoader().loadVariables(config);
 
+            // apply the overrides once at load time instead of for every lookup
+            variables.putAll(config.applyOverrides(properties));
             int countOverride = 0;
-            for (Object var : properties.keySet()) {
-                String key = String.valueOf(var);
-                String value = properties.getProperty(key);
-                if (key.endsWith("@" + config.getOverrideSuffix())) {
-                    countOverride++;
+            if (StringUtils.isNotBlank(config.getOverrideSuffix())) {
+                String keySuffix = "@" + config.getOverrideSuffix();
+                for (String key : properties.keySet()) {
+                    if (key.endsWith(keySuffix)) {
+                        countOverride++;
+                        String overriddenKey = StringUtils.removeEnd(key, keySuffix);
+                        logger.log(LOG, "Using key '" + key + "' for '" + overriddenKey + "' as system property '-D"
+                                + ZooKeeperConfig.SYS_PROP_OVERRIDE_SUFFIX + "=" + config.getOverrideSuffix() + "' is set.");
+                    }
                 }
-                variables.put(key, value);
             }
 
             String overrideSuffixSummery = StringUtils.isNotBlank(config.getOverrideSuffix())
@@ -71,8 +72,10 @@ public class ZooKeeperVarsSource extends VariablesSource {
                     + (System.currentTimeMillis() - startTime) + "ms");
 
         } catch (NoClassDefFoundError e) {
+            setNotCacheable();
             logger.log("Could not find ZooKeeper classes (put the zookeeper jar in crx-quickstart/install) " + e);
         } catch (Exception e) {
+            setNotCacheable();
             logger.logError(LOG,
                     "Could not load variables from Zookeeper " + config.getConnectStr() + ": " + e, e);
         }
@@ -80,19 +83,4 @@ public class ZooKeeperVarsSource extends VariablesSource {
     }
 
 
-    @Override
-    public NamedValue get(String varName) {
-
-        String overrideKey = varName + "@" + config.getOverrideSuffix();
-        if (variables.containsKey(overrideKey)) {
-            logger.log(LOG, "Using key '" + overrideKey + "' as system property '-D" + ZooKeeperConfig.SYS_PROP_OVERRIDE_SUFFIX + "="
-                    + config.getOverrideSuffix()
-                    + "' is set.");
-            return super.get(overrideKey);
-        } else {
-            return super.get(varName);
-        }
-    }
-
-
 }
@@ -8,6 +8,9 @@
  */
 package biz.netcentric.aem.applysystemenvinstallhook.zookeeper;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -20,11 +23,15 @@ public class ZooKeeperConfig {
     public static final String SYS_PROP_ZOOKEEPER_PATH = "applysysenv.zookeeper.path";
     public static final String SYS_PROP_OVERRIDE_SUFFIX = "applysysenv.zookeeper.overrideSuffix";
     public static final String SYS_PROP_ZOOKEEPER_CON_RETRIES = "applysysenv.zookeeper.connectRetries";
+    public static final String SYS_PROP_ZOOKEEPER_CONNECT_TIMEOUT = "applysysenv.zookeeper.connectTimeout";
+    public static final String SYS_PROP_ZOOKEEPER_SESSION_TIMEOUT = "applysysenv.zookeeper.sessionTimeout";
 
     private final String zooKeeperHosts;
     private final String zooKeeperPath;
     private final String overrideSuffix;
     private final int connectRetries;
+    private final int connectTimeout;
+    private final int sessionTimeout;
 
     public ZooKeeperConfig() {
 
@@ -35,6 +42,21 @@ public class ZooKeeperConfig {
         String zooKeeperConnectRetriesStr = System.getProperty(SYS_PROP_ZOOKEEPER_CON_RETRIES);
         connectRetries = StringUtils.isNotBlank(zooKeeperConnectRetriesStr) ? Integer.parseInt(zooKeeperConnectRetriesStr) : 2;
 
+        connectTimeout = getIntSystemProperty(SYS_PROP_ZOOKEEPER_CONNECT_TIMEOUT, 15000);
+        sessionTimeout = getIntSystemProperty(SYS_PROP_ZOOKEEPER_SESSION_TIMEOUT, 10000);
+    }
+
+    private static int getIntSystemProperty(String name, int defaultValue) {
+        String value = System.getProperty(name);
+        if (StringUtils.isBlank(value)) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            LOG.warn("Invalid value '{}' for system property {}, using default {}", value, name, defaultValue);
+            return defaultValue;
+        }
     }
 
     public boolean isValid() {
@@ -57,8 +79,31 @@ public class ZooKeeperConfig {
         return overrideSuffix;
     }
 
+    /** @return the variables with the values of keys with the override suffix (if configured) applied to the keys without suffix */
+    public Map<String, String> applyOverrides(Map<String, String> variables) {
+        Map<String, String> effectiveVariables = new HashMap<String, String>(variables);
+        if (StringUtils.isNotBlank(overrideSuffix)) {
+            String keySuffix = "@" + overrideSuffix;
+            for (Map.Entry<String, String> variable : variables.entrySet()) {
+                if (variable.getKey().endsWith(keySuffix)) {
+                    effectiveVariables.put(StringUtils.removeEnd(variable.getKey(), keySuffix), variable.getValue());
+                }
+            }
+        }
+        return effectiveVariables;
+    }
+
     public int getConnectRetries() {
         return connectRetries;
     }
 
+    /** @return the time in ms after which connecting (including all retries) is given up */
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public int getSessionTimeout() {
+        return sessionTimeout;
+    }
+
 }
@@ -8,42 +8,70 @@
  */
 package biz.netcentric.aem.applysystemenvinstallhook.zookeeper;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
+import org.apache.commons.lang.CharEncoding;
+import org.apache.zookeeper.AsyncCallback.DataCallback;
 import org.apache.zookeeper.KeeperException;
-import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
-import org.apache.zookeeper.Watcher.Event.KeeperState;
 import org.apache.zookeeper.ZooKeeper;
 import org.apache.zookeeper.data.Stat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-/** Helper to load/watch the zoo keeper config. Own class to ensure imports to zoo keeper happen only here and NoClassDefFoundExceptions can
- * be handled in ZooKeeperVarsSource. */
+/** Helper to load/watch the zoo keeper config. Own class to ensure imports to zoo keeper happen only in this package and
+ * NoClassDefFoundExceptions can be handled in ZooKeeperVarsSource. The session is shared with concurrent loads via {@link ZooKeeperSessionManager}. */
 public class ZooKeeperLoader {
     private static final Logger LOG = LoggerFactory.getLogger(ZooKeeperLoader.class);
 
-    public byte[] loadData(ZooKeeperConfig config) throws Exception {
-        return loadData(config, null);
+    private static final String PROPERTIES_SUFFIX = ".properties";
+
+    // the thread delivering watch events and async responses of a ZooKeeper client
+    private static final String EVENT_THREAD_CLASS_NAME = "org.apache.zookeeper.ClientCnxn$EventThread";
+
+    private final ZooKeeperSessionManager sessionManager = ZooKeeperSessionManager.getInstance();
+    private final Random random = new Random();
+
+    public Map<String, String> loadVariables(ZooKeeperConfig config) throws Exception {
+        return loadVariables(config, null);
     }
 
+    // the session held while a watcher is registered
     private ZooKeeper zk = null;
 
-    public byte[] loadData(ZooKeeperConfig config, Watcher watcher) throws Exception {
+    /** Loads the variables from the configured path: the data of the znode itself is parsed as properties, children of the znode are
+     * loaded in parallel - children with suffix .properties are parsed as properties, for all other children the name is used as
+     * variable name and the data as value. Children are applied in alphabetical order after the data of the znode itself.
+     * 
+     * @param watcher if given, the watcher is registered for the znode, its children and all child znodes */
+    public Map<String, String> loadVariables(ZooKeeperConfig config, Watcher watcher) throws Exception {
 
         KeeperException.ConnectionLossException lastException = null;
 
+        // retries (e.g. for a connection loss while reading) are bounded by the connect timeout as well
+        long deadline = System.currentTimeMillis() + config.getConnectTimeout();
         int connectRetries = config.getConnectRetries();
         for (int i = 0; i <= connectRetries; i++) {
             try {
-                return loadDataInternal(config, watcher);
+                return loadVariablesInternal(config, watcher);
             } catch (KeeperException.ConnectionLossException e) {
                 LOG.warn("Could not connect and load data: " + e, e);
-                if (i < connectRetries) { // only sleep if necessary
-                    Thread.sleep(333);
+                if (i < connectRetries && System.currentTimeMillis() < deadline) { // only sleep if necessary
+                    Thread.sleep(ZooKeeperSessionManager.backoffMillis(i + 1, random));
                 } else {
                     lastException = e;
+                    break;
                 }
             }
         }
@@ -52,51 +80,142 @@ public class ZooKeeperLoader {
                 "Could not connect to " + config.getConnectStr() + " even after " + connectRetries + ": " + lastException, lastException);
     }
 
-    private byte[] loadDataInternal(ZooKeeperConfig config, Watcher watcher) throws Exception {
+    private Map<String, String> loadVariablesInternal(ZooKeeperConfig config, Watcher watcher) throws Exception {
 
-        zk = connect(config);
-        byte[] data = new byte[0];
+        ZooKeeper session = sessionManager.acquire(config);
+        Map<String, String> variables = new HashMap<String, String>();
         try {
             String zooKeeperPath = config.getZooKeeperPath();
-            Stat exists = zk.exists(zooKeeperPath, false);
+            Stat exists = session.exists(zooKeeperPath, false);
             LOG.debug("Data exists state at {}: {}", zooKeeperPath, exists);
+            byte[] data;
+            List<String> children;
             if (watcher == null) {
-                data = zk.getData(zooKeeperPath, false, exists);
+                data = session.getData(zooKeeperPath, false, exists);
+                children = session.getChildren(zooKeeperPath, false);
             } else {
-                data = zk.getData(zooKeeperPath, watcher, exists);
+                data = session.getData(zooKeeperPath, watcher, exists);
+                children = session.getChildren(zooKeeperPath, watcher);
             }
             LOG.trace("Data: {}", data);
-        } finally {
+            putProperties(variables, data);
+
+            if (!children.isEmpty()) {
+                Collections.sort(children);
+                List<byte[]> childrenData = loadChildrenData(session, zooKeeperPath, children, watcher,
+                        System.currentTimeMillis() + config.getConnectTimeout());
+                for (int i = 0; i < children.size(); i++) {
+                    String child = children.get(i);
+                    byte[] childData = childrenData.get(i);
+                    if (childData == null) {
+                        continue;
+                    }
+                    if (child.endsWith(PROPERTIES_SUFFIX)) {
+                        putProperties(variables, childData);
+                    } else {
+                        variables.put(child, new String(childData, CharEncoding.UTF_8));
+                    }
+                }
+                LOG.debug("Loaded {} child znodes of {}", children.size(), zooKeeperPath);
+            }
+        } catch (Exception e) {
+            sessionManager.release(session);
+            throw e;
+        }
+        if (watcher == null) {
+            sessionManager.release(session);
+        } else {
+            // keep the session open as long as the watcher is registered (only one session is held per loader)
+            closeSession();
+            zk = session;
+        }
+        return variables;
+    }
+
+    // fetches the data of all children with the async API (all requests are sent before waiting for the responses)
+    private List<byte[]> loadChildrenData(ZooKeeper session, String parentPath, List<String> children, Watcher watcher, long deadline)
+            throws KeeperException, InterruptedException {
+
+        if (isEventThread()) {
+            // the async responses would be delivered by this thread, so waiting for them would only end with the timeout
+            LOG.debug("Loading children of {} synchronously as called from the ZooKeeper event thread", parentPath);
+            return loadChildrenDataSync(session, parentPath, children, watcher);
+        }
+
+        final byte[][] childrenData = new byte[children.size()][];
+        final int[] resultCodes = new int[children.size()];
+        final CountDownLatch responsesLatch = new CountDownLatch(children.size());
+        DataCallback callback = new DataCallback() {
+            @Override
+            public void processResult(int rc, String path, Object ctx, byte[] data, Stat stat) {
+                int index = (Integer) ctx;
+                // the latch ensures visibility of the array elements for the waiting thread
+                resultCodes[index] = rc;
+                childrenData[index] = data;
+                responsesLatch.countDown();
+            }
+        };
+        for (int i = 0; i < children.size(); i++) {
+            String childPath = parentPath + "/" + children.get(i);
             if (watcher == null) {
-                closeSession();
+                session.getData(childPath, false, callback, i);
+            } else {
+                session.getData(childPath, watcher, callback, i);
             }
         }
-        return data;
+
+        if (!responsesLatch.await(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+            throw new KeeperException.ConnectionLossException();
+        }
+
+        for (int i = 0; i < children.size(); i++) {
+            KeeperException.Code code = KeeperException.Code.get(resultCodes[i]);
+            if (code == KeeperException.Code.NONODE) {
+                LOG.debug("Child {} was deleted while loading", children.get(i));
+                childrenData[i] = null;
+            } else if (code != KeeperException.Code.OK) {
+                throw KeeperException.create(code, parentPath + "/" + children.get(i));
+            }
+        }
+        return Arrays.asList(childrenData);
     }
 
-    public void closeSession() {
-        if (zk != null) {
+    private List<byte[]> loadChildrenDataSync(ZooKeeper session, String parentPath, List<String> children, Watcher watcher)
+            throws KeeperException, InterruptedException {
+        List<byte[]> childrenData = new ArrayList<byte[]>(children.size());
+        for (String child : children) {
+            String childPath = parentPath + "/" + child;
             try {
-                zk.close();
-            } catch (Exception e) {
-                LOG.warn("Could not close ZooKeeper session: " + e, e);
+                childrenData.add(watcher == null ? session.getData(childPath, false, null) : session.getData(childPath, watcher, null));
+            } catch (KeeperException.NoNodeException e) {
+                LOG.debug("Child {} was deleted while loading", child);
+                childrenData.add(null);
             }
         }
+        return childrenData;
     }
 
-    private ZooKeeper connect(ZooKeeperConfig config) throws Exception {
-        final CountDownLatch connSignal = new CountDownLatch(1);
-        ZooKeeper zk = new ZooKeeper(config.getZooKeeperHosts(), 10000, new Watcher() {
-            public void process(WatchedEvent event) {
-                LOG.debug("Received event {} for path {} with state ", event.getType(), event.getPath(), event.getState());
-                if (event.getState() == KeeperState.SyncConnected) {
-                    connSignal.countDown();
-                }
-            }
-        }, true);
-        connSignal.await();
-        LOG.debug("Returning connection {}", zk);
-        return zk;
+    static boolean isEventThread() {
+        return EVENT_THREAD_CLASS_NAME.equals(Thread.currentThread().getClass().getName());
+    }
+
+    private void putProperties(Map<String, String> variables, byte[] data) throws IOException {
+        if (data == null || data.length == 0) {
+            return;
+        }
+        Properties properties = new Properties();
+        properties.load(new ByteArrayInputStream(data));
+        for (String key : properties.stringPropertyNames()) {
+            variables.put(key, properties.getProperty(key));
+        }
+    }
+
+    /** Releases the session held for a registered watcher. */
+    public void closeSession() {
+        if (zk != null) {
+            sessionManager.release(zk);
+            zk = null;
+        }
     }
 
 }
@@ -0,0 +1,229 @@
+/*
+ * (C) Copyright 2018 Netcentric, A Cognizant Digital Business.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.aem.applysystemenvinstallhook.zookeeper;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.Event.KeeperState;
+import org.apache.zookeeper.ZooKeeper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Shares one ZooKeeper session between the concurrent loads of one class loader.
+ *
+ * The session is reference counted: {@link #acquire(ZooKeeperConfig)} connects if there is no usable session yet and
+ * {@link #release(ZooKeeper)} closes the session as soon as it is not used anymore. As FileVault loads the install hook with a separate
+ * class loader per package, a package install hence never leaves a session open. Within the change listener bundle, the session held by
+ * the watch is reused by the loads of re-applied templates.
+ *
+ * Each connect attempt waits for its share of the connect timeout, failed attempts are retried with jittered exponential backoff until
+ * the connect timeout has passed. Connecting and waiting for a reconnect happen outside of the monitor, only the resulting session is
+ * published under it (hence concurrent loads do not wait on each other for the connect timeout). */
+public final class ZooKeeperSessionManager {
+    private static final Logger LOG = LoggerFactory.getLogger(ZooKeeperSessionManager.class);
+
+    private static final long BACKOFF_BASE_MS = 200;
+    private static final long BACKOFF_MAX_MS = 5000;
+    private static final long RECONNECT_POLL_INTERVAL_MS = 50;
+
+    private static final ZooKeeperSessionManager INSTANCE = new ZooKeeperSessionManager();
+
+    public static ZooKeeperSessionManager getInstance() {
+        return INSTANCE;
+    }
+
+    private final Random random = new Random();
+
+    // all fields below are guarded by this
+    private ZooKeeper zk = null;
+    private String zkHosts = null;
+    private int refCount = 0;
+
+    ZooKeeperSessionManager() {
+    }
+
+    /** @return a connected session, to be returned with {@link #release(ZooKeeper)}
+     * @throws KeeperException.ConnectionLossException if no connection could be established within the connect timeout */
+    public ZooKeeper acquire(ZooKeeperConfig config) throws KeeperException, InterruptedException {
+        String hosts = config.getZooKeeperHosts();
+        long deadline = System.currentTimeMillis() + config.getConnectTimeout();
+        long attemptTimeout = getAttemptTimeout(config);
+
+        ZooKeeper reconnecting = acquireConnectedOrGetAlive(hosts);
+        if (reconnecting != null && reconnecting.getState().isConnected()) {
+            return reconnecting;
+        }
+        if (reconnecting != null) {
+            // the client reconnects by itself after a connection loss
+            awaitConnected(reconnecting, Math.min(deadline, System.currentTimeMillis() + attemptTimeout));
+            synchronized (this) {
+                if (zk == reconnecting && zk.getState().isConnected()) {
+                    return acquired();
+                }
+            }
+        }
+
+        int attempt = 0;
+        while (true) {
+            if (attempt > config.getConnectRetries() || System.currentTimeMillis() >= deadline) {
+                throw new KeeperException.ConnectionLossException();
+            }
+            if (attempt > 0) {
+                long sleepMs = Math.min(backoffMillis(attempt, random), deadline - System.currentTimeMillis());
+                LOG.debug("Retrying to connect to {} in {}ms", hosts, sleepMs);
+                if (sleepMs > 0) {
+                    Thread.sleep(sleepMs);
+                }
+            }
+            attempt++;
+            ZooKeeper connected = connect(config, Math.min(deadline, System.currentTimeMillis() + attemptTimeout));
+            if (connected != null) {
+                return publish(connected, hosts);
+            }
+        }
+    }
+
+    // returns the acquired session if connected, the session to wait for if it is alive but disconnected or null if a new session is
+    // needed
+    private synchronized ZooKeeper acquireConnectedOrGetAlive(String hosts) {
+        if (zk != null && !hosts.equals(zkHosts)) {
+            LOG.info("ZooKeeper hosts changed from {} to {}, reconnecting", zkHosts, hosts);
+            closeSession();
+        }
+        if (zk != null && !zk.getState().isAlive()) {
+            LOG.debug("Session {} is not alive anymore ({}), reconnecting", zk, zk.getState());
+            closeSession();
+        }
+        if (zk != null && zk.getState().isConnected()) {
+            return acquired();
+        }
+        return zk;
+    }
+
+    // publishes a newly connected session, unless another thread has published a usable session meanwhile
+    private synchronized ZooKeeper publish(ZooKeeper connected, String hosts) {
+        if (zk != null && hosts.equals(zkHosts) && zk.getState().isConnected()) {
+            LOG.debug("Session {} was connected concurrently, closing {}", zk, connected);
+            close(connected);
+            return acquired();
+        }
+        closeSession();
+        zk = connected;
+        zkHosts = hosts;
+        return acquired();
+    }
+
+    private ZooKeeper acquired() {
+        refCount++;
+        LOG.trace("Acquired session {} (refCount={})", zk, refCount);
+        return zk;
+    }
+
+    /** Releases a session as returned by {@link #acquire(ZooKeeperConfig)}. */
+    public synchronized void release(ZooKeeper session) {
+        if (session != zk) {
+            // the session has been replaced in the meantime (and is closed already)
+            return;
+        }
+        refCount = Math.max(0, refCount - 1);
+        LOG.trace("Released session {} (refCount={})", zk, refCount);
+        if (refCount == 0) {
+            LOG.debug("Closing session {} not used anymore", zk);
+            closeSession();
+        }
+    }
+
+    /** @return the time in ms a single connect attempt waits for, such that all retries fit into the connect timeout */
+    static long getAttemptTimeout(ZooKeeperConfig config) {
+        return Math.max(1, config.getConnectTimeout() / (Math.max(0, config.getConnectRetries()) + 1));
+    }
+
+    /** @return the connected client or null if it could not connect within the deadline of the attempt */
+    private ZooKeeper connect(ZooKeeperConfig config, long deadline) throws InterruptedException {
+        String hosts = config.getZooKeeperHosts();
+        LOG.debug("Connecting to {}", hosts);
+        final CountDownLatch connSignal = new CountDownLatch(1);
+        ZooKeeper client;
+        try {
+            client = new ZooKeeper(hosts, config.getSessionTimeout(), new Watcher() {
+                public void process(WatchedEvent event) {
+                    LOG.debug("Received event {} for path {} with state {}", event.getType(), event.getPath(), event.getState());
+                    if (event.getState() == KeeperState.SyncConnected || event.getState() == KeeperState.ConnectedReadOnly) {
+                        connSignal.countDown();
+                    }
+                }
+            }, true);
+        } catch (Exception e) {
+            LOG.warn("Could not create ZooKeeper client for " + hosts + ": " + e, e);
+            return null;
+        }
+        boolean connected = false;
+        try {
+            connected = connSignal.await(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } finally {
+            if (!connected) {
+                close(client);
+            }
+        }
+        if (connected) {
+            LOG.debug("Connected session {}", client);
+            return client;
+        } else {
+            LOG.warn("Could not connect to {} within {}ms", hosts, getAttemptTimeout(config));
+            return null;
+        }
+    }
+
+    private void awaitConnected(ZooKeeper session, long deadline) throws InterruptedException {
+        while (!session.getState().isConnected() && session.getState().isAlive() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(RECONNECT_POLL_INTERVAL_MS);
+        }
+    }
+
+    /** @return the time to wait before the given attempt (starting at 1): exponential with random jitter between 50% and 100% */
+    static long backoffMillis(int attempt, Random random) {
+        long backoff = Math.min(BACKOFF_MAX_MS, BACKOFF_BASE_MS << Math.min(attempt - 1, 16));
+        return backoff / 2 + (long) (random.nextDouble() * (backoff / 2));
+    }
+
+    private void closeSession() {
+        if (zk != null) {
+            if (refCount > 0) {
+                LOG.debug("Closing session {} still used by {} clients", zk, refCount);
+            }
+            close(zk);
+            zk = null;
+            zkHosts = null;
+            refCount = 0;
+        }
+    }
+
+    private static void close(ZooKeeper session) {
+        try {
+            session.close();
+        } catch (Exception e) {
+            LOG.warn("Could not close ZooKeeper session: " + e, e);
+        }
+    }
+
+    /** @return the number of current users of the shared session */
+    synchronized int getRefCount() {
+        return refCount;
+    }
+
+    synchronized boolean hasSession() {
+        return zk != null;
+    }
+
+}
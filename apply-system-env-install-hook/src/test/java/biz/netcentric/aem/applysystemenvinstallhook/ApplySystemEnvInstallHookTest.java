@@ -0,0 +1,491 @@
+/*
+ * (C) Copyright 2018 Netcentric, A Cognizant Digital Business.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.aem.applysystemenvinstallhook;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.jcr.Binary;
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+import javax.jcr.ValueFactory;
+import javax.jcr.Workspace;
+import javax.jcr.nodetype.NodeType;
+import javax.jcr.nodetype.PropertyDefinition;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.jackrabbit.commons.iterator.NodeIteratorAdapter;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.jackrabbit.commons.iterator.PropertyIteratorAdapter;
+import org.apache.jackrabbit.vault.fs.api.PathFilterSet;
+import org.apache.jackrabbit.vault.fs.api.WorkspaceFilter;
+import org.apache.jackrabbit.vault.fs.config.MetaInf;
+import org.apache.jackrabbit.vault.fs.io.ImportOptions;
+import org.apache.jackrabbit.vault.fs.io.ZipArchive;
+import org.apache.jackrabbit.vault.packaging.PackageException;
+import org.apache.jackrabbit.vault.packaging.PackageId;
+import org.apache.jackrabbit.vault.packaging.PackageProperties;
+import org.apache.jackrabbit.vault.packaging.VaultPackage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.InOrder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import biz.netcentric.aem.applysystemenvinstallhook.sources.SystemPropertiesVarsSource;
+
+public class ApplySystemEnvInstallHookTest {
+
+    private static final String PROPERTY_NAME = "prop";
+    private static final String TEMPLATE_PATH = "/apps/test/config/com.example.A.config.TEMPLATE";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Session session;
+    private ApplySystemEnvInstallHook hook;
+    private Map<String, Property> properties = new HashMap<String, Property>();
+    private Map<String, String> packageProperties = new HashMap<String, String>();
+    private ZipArchive archive;
+
+    private VariablesSource varSource = new VariablesSource("testsource",
+            new HashMap<String, String>() {
+                {
+                    put("var1", "val1");
+                }
+            }) {
+    };
+
+    @Before
+    public void setup() {
+        session = mock(Session.class);
+        hook = new ApplySystemEnvInstallHook();
+        // avoid the JCR source that would read from the mocked session
+        packageProperties.put("applySystemEnvSources", SystemPropertiesVarsSource.NAME);
+    }
+
+    @After
+    public void tearDown() {
+        if (archive != null) {
+            archive.close();
+        }
+    }
+
+    @Test
+    public void testSaveInBatchesWithinNodeTree() throws RepositoryException {
+        hook.startAdjusting(session, new ImportOptions(), 2);
+        Node child1 = mockNode("/content/tree/child1", "${var1}");
+        Node child2 = mockNode("/content/tree/child2", "${var1}");
+        Node tree = mockNode("/content/tree", "${var1}", child1, child2);
+
+        hook.adjustAllPropertiesOfNodeTree(tree, varSource, new ImportOptions());
+
+        // the tree is saved in batches of 2 modified items, but only after a node has been adjusted completely
+        InOrder inOrder = inOrder(properties.get("/content/tree"), properties.get("/content/tree/child1"), session,
+                properties.get("/content/tree/child2"));
+        inOrder.verify(properties.get("/content/tree")).setValue("val1");
+        inOrder.verify(properties.get("/content/tree/child1")).setValue("val1");
+        inOrder.verify(session).save();
+        inOrder.verify(properties.get("/content/tree/child2")).setValue("val1");
+        verify(session, times(1)).save();
+    }
+
+    @Test
+    public void testTemplateTargetIsNotSavedWhileRemoved() throws RepositoryException {
+        hook.startAdjusting(session, new ImportOptions(), 1);
+        String targetPath = StringUtils.substringBeforeLast(TEMPLATE_PATH, ".TEMPLATE");
+        Node target = mockNode(targetPath, "${var1}");
+        when(session.itemExists(targetPath)).thenReturn(true);
+        when(session.getItem(targetPath)).thenReturn(target);
+        // the node re-created for the template
+        Node root = mock(Node.class);
+        when(session.getRootNode()).thenReturn(root);
+        when(root.hasNode(targetPath.substring(1))).thenReturn(true);
+        when(root.getNode(targetPath.substring(1))).thenReturn(target);
+        Node template = mockNode(TEMPLATE_PATH, "${var1}");
+        NodeType nodeType = mock(NodeType.class);
+        when(nodeType.getName()).thenReturn("nt:unstructured");
+        when(template.getPrimaryNodeType()).thenReturn(nodeType);
+
+        hook.applyTemplate(template, null, varSource, new ImportOptions());
+
+        // the batch is full after removing the target already, but it is only saved once the target has been re-created
+        InOrder inOrder = inOrder(session, properties.get(targetPath));
+        inOrder.verify(session).removeItem(targetPath);
+        inOrder.verify(properties.get(targetPath)).setValue("val1");
+        inOrder.verify(session).save();
+        verify(session, times(1)).save();
+    }
+
+    @Test
+    public void testUnchangedPropertiesAreNotWritten() throws RepositoryException {
+        hook.startAdjusting(session, new ImportOptions(), 0);
+        Node node = mockNode("/content/test", "no variables");
+        final Property multiValueProperty = mock(Property.class);
+        when(multiValueProperty.getName()).thenReturn("multi");
+        when(multiValueProperty.getType()).thenReturn(PropertyType.STRING);
+        when(multiValueProperty.getDefinition()).thenReturn(mock(PropertyDefinition.class));
+        when(multiValueProperty.isMultiple()).thenReturn(true);
+        Value value = mock(Value.class);
+        when(value.getString()).thenReturn("val1");
+        when(multiValueProperty.getValues()).thenReturn(new Value[] { value });
+        when(node.getProperty("multi")).thenReturn(multiValueProperty);
+        when(node.getProperties()).thenAnswer(new Answer<PropertyIteratorAdapter>() {
+            @Override
+            public PropertyIteratorAdapter answer(InvocationOnMock invocation) {
+                return new PropertyIteratorAdapter(Arrays.asList(properties.get("/content/test"), multiValueProperty));
+            }
+        });
+        ValueFactory valueFactory = mock(ValueFactory.class);
+        when(session.getValueFactory()).thenReturn(valueFactory);
+
+        hook.adjustAllPropertiesOfNodeTree(node, varSource, new ImportOptions());
+
+        verify(properties.get("/content/test"), never()).setValue(anyString());
+        verify(multiValueProperty, never()).setValue(any(Value[].class));
+        assertEquals(2, hook.variablesMerger.getUnchangedItemsCount());
+        assertEquals(0, hook.variablesMerger.getChangedItemsCount());
+    }
+
+    @Test
+    public void testUnchangedFileIsNotWritten() throws Exception {
+        hook.startAdjusting(session, new ImportOptions(), 0);
+        Node parent = mock(Node.class);
+        Node template = mockFile(parent, "/apps/test/config.TEMPLATE", "key=${var1}");
+        mockFile(parent, "/apps/test/config", "key=val1");
+
+        hook.adjustFile(template, varSource);
+
+        verify(session, never()).getValueFactory();
+        assertEquals(1, hook.variablesMerger.getUnchangedItemsCount());
+        assertEquals(0, hook.variablesMerger.getChangedItemsCount());
+    }
+
+    @Test
+    public void testChangedFileIsWritten() throws Exception {
+        hook.startAdjusting(session, new ImportOptions(), 0);
+        Node parent = mock(Node.class);
+        Node template = mockFile(parent, "/apps/test/config.TEMPLATE", "key=${var1}");
+        mockFile(parent, "/apps/test/config", "key=old value");
+        List<InputStream> writtenContent = mockFileWrite(parent);
+
+        hook.adjustFile(template, varSource);
+
+        assertEquals(1, writtenContent.size());
+        assertTrue(writtenContent.get(0) instanceof ByteArrayInputStream);
+        assertEquals(1, hook.variablesMerger.getChangedItemsCount());
+    }
+
+    @Test
+    public void testLargeFileIsBufferedInTempFile() throws Exception {
+        hook.startAdjusting(session, new ImportOptions(), 0);
+        StringBuilder content = new StringBuilder("key=${var1}\n");
+        while (content.length() <= ApplySystemEnvInstallHook.FILE_BUFFER_THRESHOLD) {
+            content.append("line without variables\n");
+        }
+        Node parent = mock(Node.class);
+        Node template = mockFile(parent, "/apps/test/large.txt.TEMPLATE", content.toString());
+        final List<File> tempFiles = new ArrayList<File>();
+        final List<String> writtenContent = new ArrayList<String>();
+        ValueFactory valueFactory = mock(ValueFactory.class);
+        when(valueFactory.createBinary(any(InputStream.class))).thenAnswer(new Answer<Binary>() {
+            @Override
+            public Binary answer(InvocationOnMock invocation) throws IOException {
+                InputStream stream = invocation.getArgument(0);
+                assertTrue(stream instanceof FileInputStream);
+                tempFiles.addAll(Arrays.asList(new File(System.getProperty("java.io.tmpdir")).listFiles(new FilenameFilter() {
+                    @Override
+                    public boolean accept(File dir, String name) {
+                        return name.startsWith("applysysenv-") && name.endsWith(".tmp");
+                    }
+                })));
+                writtenContent.add(IOUtils.toString(stream, "UTF-8"));
+                return mock(Binary.class);
+            }
+        });
+        mockFileWriteTarget(parent, "large.txt", valueFactory);
+
+        hook.adjustFile(template, varSource);
+
+        assertEquals(Arrays.asList(content.toString().replace("${var1}", "val1")), writtenContent);
+        assertFalse(tempFiles.isEmpty());
+        for (File tempFile : tempFiles) {
+            assertFalse("Temp file " + tempFile + " is deleted", tempFile.exists());
+        }
+    }
+
+    @Test
+    public void testFileBytesProcessed() throws Exception {
+        hook.startAdjusting(session, new ImportOptions(), 0);
+        Node parent = mock(Node.class);
+        Node template = mockFile(parent, "/apps/test/config.TEMPLATE", "key=${var1}");
+        mockFile(parent, "/apps/test/config", "key=val1");
+
+        hook.adjustFile(template, varSource);
+
+        // the template is read once by the binary sniffer and pre-scanner and once for the substitution
+        assertEquals(2 * "key=${var1}".length(), hook.metrics.fileBytesProcessed);
+    }
+
+    @Test
+    public void testCollectTemplateNodesFallsBackToTraversal() throws RepositoryException {
+        hook.startAdjusting(session, new ImportOptions(), 0);
+        VaultPackage vaultPackage = mockPackage("/apps/test");
+        mockTemplateIndex("/apps");
+        Node template = mockNode("/apps/test/config.TEMPLATE", "${var1}");
+        mockNode("/apps/test", "", template);
+
+        Query query = mock(Query.class);
+        when(query.execute()).thenThrow(new UnsupportedOperationException("The query read or traversed more than 100000 nodes."));
+        QueryManager queryManager = mockQueryManager();
+        when(queryManager.createQuery(anyString(), eq(Query.JCR_SQL2))).thenReturn(query);
+
+        List<String> templatePaths = new ArrayList<String>();
+        hook.collectTemplateNodes(vaultPackage, session, templatePaths, null);
+        assertEquals(Arrays.asList("/apps/test/config.TEMPLATE"), templatePaths);
+    }
+
+    @Test
+    public void testCollectTemplateNodesOutsideOfIndexedPaths() throws RepositoryException {
+        hook.startAdjusting(session, new ImportOptions(), 0);
+        VaultPackage vaultPackage = mockPackage("/content/test");
+        mockTemplateIndex("/apps", "/conf");
+        Node template = mockNode("/content/test/config.TEMPLATE", "${var1}");
+        mockNode("/content/test", "", template);
+        QueryManager queryManager = mockQueryManager();
+
+        List<String> templatePaths = new ArrayList<String>();
+        hook.collectTemplateNodes(vaultPackage, session, templatePaths, null);
+        assertEquals(Arrays.asList("/content/test/config.TEMPLATE"), templatePaths);
+        verify(queryManager, never()).createQuery(anyString(), anyString());
+    }
+
+    @Test
+    public void testReapplyWithPathAdjustedInPlace() throws Exception {
+        packageProperties.put("applySystemEnvForPaths", "/apps/test/config/com.example.A.config.TEMPLATE, /content/test");
+        VaultPackage vaultPackage = mockPackage("/apps/test", "a=\"${var.a}\"");
+
+        // the variables of /content/test are not in the repository anymore
+        assertFalse(hook.reapply(vaultPackage, session, new ImportOptions()));
+        verify(vaultPackage, never()).getArchive();
+        verify(session, never()).save();
+    }
+
+    @Test
+    public void testReapplyWithMissingTemplate() throws Exception {
+        VaultPackage vaultPackage = mockPackage("/apps/test", "a=\"${var.a}\"");
+        when(session.nodeExists(TEMPLATE_PATH)).thenReturn(false);
+
+        assertFalse(hook.reapply(vaultPackage, session, new ImportOptions()));
+        verify(session).nodeExists(TEMPLATE_PATH);
+        verify(session, never()).save();
+    }
+
+    @Test
+    public void testReapplyWithMissingEnvVars() throws Exception {
+        packageProperties.put("failForMissingEnvVars", "true");
+        VaultPackage vaultPackage = mockPackage("/apps/test", "a=\"${applysysenv.test.undefined.var}\"");
+        when(session.nodeExists(TEMPLATE_PATH)).thenReturn(true);
+
+        try {
+            hook.reapply(vaultPackage, session, new ImportOptions());
+            fail("Expected PackageException for missing variable");
+        } catch (PackageException e) {
+            // expected, the content of the template is left unchanged
+        }
+        verify(session, never()).getNode(anyString());
+        verify(session, never()).save();
+    }
+
+    private VaultPackage mockPackage(String filterRoot) {
+        WorkspaceFilter filter = mock(WorkspaceFilter.class);
+        when(filter.getFilterSets()).thenReturn(Arrays.asList(new PathFilterSet(filterRoot)));
+        when(filter.covers(anyString())).thenReturn(true);
+        MetaInf metaInf = mock(MetaInf.class);
+        when(metaInf.getFilter()).thenReturn(filter);
+        VaultPackage vaultPackage = mock(VaultPackage.class);
+        when(vaultPackage.getMetaInf()).thenReturn(metaInf);
+        return vaultPackage;
+    }
+
+    private VaultPackage mockPackage(String filterRoot, String templateContent) throws IOException {
+        Map<String, String> entries = new LinkedHashMap<String, String>();
+        entries.put("jcr_root" + TEMPLATE_PATH, templateContent);
+        archive = new ZipArchive(createZip(entries));
+        archive.open(false);
+
+        PackageProperties vaultPackageProperties = mock(PackageProperties.class);
+        when(vaultPackageProperties.getProperty(anyString())).thenAnswer(new Answer<String>() {
+            @Override
+            public String answer(InvocationOnMock invocation) {
+                return packageProperties.get(invocation.getArgument(0));
+            }
+        });
+        VaultPackage vaultPackage = mockPackage(filterRoot);
+        when(vaultPackage.getId()).thenReturn(new PackageId("test", "test-package", "1.0"));
+        when(vaultPackage.getProperties()).thenReturn(vaultPackageProperties);
+        when(vaultPackage.getArchive()).thenReturn(archive);
+        return vaultPackage;
+    }
+
+    private File createZip(Map<String, String> entries) throws IOException {
+        File file = temporaryFolder.newFile();
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file));
+        try {
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                out.putNextEntry(new ZipEntry(entry.getKey()));
+                out.write(entry.getValue().getBytes("UTF-8"));
+                out.closeEntry();
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private void mockTemplateIndex(String... queryPaths) throws RepositoryException {
+        Node indexNode = mock(Node.class);
+        Value[] values = new Value[queryPaths.length];
+        for (int i = 0; i < queryPaths.length; i++) {
+            values[i] = mock(Value.class);
+            when(values[i].getString()).thenReturn(queryPaths[i]);
+        }
+        Property queryPathsProperty = mock(Property.class);
+        when(queryPathsProperty.isMultiple()).thenReturn(true);
+        when(queryPathsProperty.getValues()).thenReturn(values);
+        when(indexNode.hasProperty("queryPaths")).thenReturn(true);
+        when(indexNode.getProperty("queryPaths")).thenReturn(queryPathsProperty);
+        when(session.nodeExists(ApplySystemEnvInstallHook.TEMPLATE_INDEX_PATH)).thenReturn(true);
+        when(session.getNode(ApplySystemEnvInstallHook.TEMPLATE_INDEX_PATH)).thenReturn(indexNode);
+    }
+
+    private QueryManager mockQueryManager() throws RepositoryException {
+        QueryManager queryManager = mock(QueryManager.class);
+        Workspace workspace = mock(Workspace.class);
+        when(workspace.getQueryManager()).thenReturn(queryManager);
+        when(session.getWorkspace()).thenReturn(workspace);
+        return queryManager;
+    }
+
+    // records the streams passed to JcrUtils.putFile() for the target of the template
+    private List<InputStream> mockFileWrite(Node parent) throws RepositoryException {
+        final List<InputStream> writtenContent = new ArrayList<InputStream>();
+        ValueFactory valueFactory = mock(ValueFactory.class);
+        when(valueFactory.createBinary(any(InputStream.class))).thenAnswer(new Answer<Binary>() {
+            @Override
+            public Binary answer(InvocationOnMock invocation) {
+                writtenContent.add((InputStream) invocation.getArgument(0));
+                return mock(Binary.class);
+            }
+        });
+        mockFileWriteTarget(parent, "config", valueFactory);
+        return writtenContent;
+    }
+
+    private void mockFileWriteTarget(Node parent, String name, ValueFactory valueFactory) throws RepositoryException {
+        when(parent.getSession()).thenReturn(session);
+        when(session.getValueFactory()).thenReturn(valueFactory);
+        Node fileNode = parent.hasNode(name) ? parent.getNode(name) : mock(Node.class);
+        when(parent.addNode(anyString(), anyString())).thenReturn(fileNode);
+        when(fileNode.addNode(anyString(), anyString())).thenReturn(mock(Node.class));
+    }
+
+    private Node mockFile(Node parent, String path, final String content) throws RepositoryException {
+        Node fileNode = mock(Node.class);
+        String name = path.substring(path.lastIndexOf('/') + 1);
+        when(fileNode.getPath()).thenReturn(path);
+        when(fileNode.getName()).thenReturn(name);
+        when(fileNode.getParent()).thenReturn(parent);
+        when(parent.hasNode(name)).thenReturn(true);
+        when(parent.getNode(name)).thenReturn(fileNode);
+
+        Binary binary = mock(Binary.class);
+        when(binary.getStream()).thenAnswer(new Answer<ByteArrayInputStream>() {
+            @Override
+            public ByteArrayInputStream answer(InvocationOnMock invocation) throws Exception {
+                return new ByteArrayInputStream(content.getBytes("UTF-8"));
+            }
+        });
+        Property data = mock(Property.class);
+        when(data.getBinary()).thenReturn(binary);
+        // JcrUtils uses the expanded name
+        for (String dataPropertyName : Arrays.asList(JcrConstants.JCR_DATA, Property.JCR_DATA)) {
+            when(fileNode.hasProperty(dataPropertyName)).thenReturn(true);
+            when(fileNode.getProperty(dataPropertyName)).thenReturn(data);
+        }
+        return fileNode;
+    }
+
+    private Node mockNode(String path, String propertyValue, final Node... children) throws RepositoryException {
+        Node node = mock(Node.class);
+        when(node.getPath()).thenReturn(path);
+        when(node.getSession()).thenReturn(session);
+        when(session.getNode(path)).thenReturn(node);
+
+        final Property property = mock(Property.class);
+        when(property.getName()).thenReturn(PROPERTY_NAME);
+        when(property.getType()).thenReturn(PropertyType.STRING);
+        when(property.getString()).thenReturn(propertyValue);
+        when(property.getDefinition()).thenReturn(mock(PropertyDefinition.class));
+        when(node.getProperty(PROPERTY_NAME)).thenReturn(property);
+        properties.put(path, property);
+
+        when(node.getProperties()).thenAnswer(new Answer<PropertyIteratorAdapter>() {
+            @Override
+            public PropertyIteratorAdapter answer(InvocationOnMock invocation) {
+                return new PropertyIteratorAdapter(Arrays.asList(property));
+            }
+        });
+        when(node.getNodes()).thenAnswer(new Answer<NodeIteratorAdapter>() {
+            @Override
+            public NodeIteratorAdapter answer(InvocationOnMock invocation) {
+                return new NodeIteratorAdapter(Arrays.asList(children));
+            }
+        });
+        return node;
+    }
+
+}
@@ -0,0 +1,82 @@
+/*
+ * (C) Copyright 2018 Netcentric, A Cognizant Digital Business.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.aem.applysystemenvinstallhook;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+public class BinaryContentSnifferTest {
+
+    @Test
+    public void testText() throws Exception {
+        assertFalse(isBinary(new byte[0]));
+        assertFalse(isBinary("key=${var1}\r\n\tother=value\n".getBytes("UTF-8")));
+        assertFalse(isBinary("<?xml version=\"1.0\"?><jcr:root title=\"Grüße ${var1} €\"/>".getBytes("UTF-8")));
+        // a few ISO-8859-1 chars in otherwise ASCII text
+        assertFalse(isBinary("title=Grüße aus Köln, this is still text".getBytes("ISO-8859-1")));
+
+        // multi-byte char cut off by the end of the sniffed bytes
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < BinaryContentSniffer.SNIFF_LENGTH - 1; i++) {
+            text.append('a');
+        }
+        text.append('€');
+        assertFalse(isBinary(text.toString().getBytes("UTF-8")));
+    }
+
+    @Test
+    public void testBinary() throws Exception {
+        assertTrue(isBinary(new byte[] { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' }));
+        assertTrue(isBinary(new byte[] { (byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xE0 }));
+        assertTrue(isBinary("%PDF-1.4\n%âãÏÓ".getBytes("ISO-8859-1")));
+        assertTrue(isBinary(new byte[] { 0, 0, 0, 0x18, 'f', 't', 'y', 'p', 'm', 'p', '4', '2' }));
+        assertTrue(isBinary("text with NUL \u0000 byte".getBytes("UTF-8")));
+
+        byte[] random = new byte[256];
+        for (int i = 0; i < random.length; i++) {
+            random[i] = (byte) (0x80 + (i * 37) % 0x80);
+        }
+        assertTrue(isBinary(random));
+    }
+
+    @Test
+    public void testTextStartingWithMagicNumber() throws Exception {
+        assertFalse(isBinary("%PDF export is configured with ${pdf.options}".getBytes("UTF-8")));
+        assertFalse(isBinary("GIF89a.host=${gif.host}".getBytes("UTF-8")));
+        assertFalse(isBinary("RIFF chunks\nID3 tags\n".getBytes("UTF-8")));
+        assertFalse(isBinary("ID3=${id3}".getBytes("UTF-8")));
+        assertFalse(isBinary("OggS wOFF".getBytes("UTF-8")));
+        assertFalse(isBinary("key=ftyp".getBytes("UTF-8")));
+
+        // with a control character
+        assertTrue(isBinary(new byte[] { 'R', 'I', 'F', 'F', 0x24, 0x08, 'W', 'A', 'V', 'E' }));
+        assertTrue(isBinary(new byte[] { 'G', 'I', 'F', '8', '9', 'a', 0x01, 0x02 }));
+    }
+
+    @Test
+    public void testStreamIsReset() throws Exception {
+        byte[] content = "key=${var1}".getBytes("UTF-8");
+        InputStream input = new BufferedInputStream(new ByteArrayInputStream(content));
+        assertFalse(BinaryContentSniffer.isBinary(input));
+        assertEquals("key=${var1}", IOUtils.toString(input, "UTF-8"));
+    }
+
+    private static boolean isBinary(byte[] bytes) throws Exception {
+        return BinaryContentSniffer.isBinary(new BufferedInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+}
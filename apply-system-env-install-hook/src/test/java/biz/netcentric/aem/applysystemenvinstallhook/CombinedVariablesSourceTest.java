@@ -10,6 +10,7 @@ package biz.netcentric.aem.applysystemenvinstallhook;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.doNothing;
@@ -76,4 +77,39 @@ public class CombinedVariablesSourceTest {
 
     }
 
+    @Test
+    public void testResolvedVariablesSource() {
+
+        VariablesSource varSource1 = new VariablesSource("testsource1",
+                new HashMap<String, String>() {
+                    {
+                        put("var_1", "val1");
+                    }
+                }) {
+            @Override
+            protected String normalizeName(String varName) {
+                return varName.replace('.', '_');
+            }
+        };
+        VariablesSource varSource2 = new VariablesSource("testsource2",
+                new HashMap<String, String>() {
+                    {
+                        put("var.1", "val1hidden");
+                        put("var2", "val2");
+                    }
+                }) {
+        };
+
+        ResolvedVariablesSource resolvedVariablesSource = new ResolvedVariablesSource(
+                new CombinedVariablesSource("", Arrays.asList(varSource1, varSource2)));
+
+        assertEquals("testsource1", resolvedVariablesSource.get("var.1").sourceName);
+        assertEquals("val1", resolvedVariablesSource.get("var.1").value);
+        assertEquals("val1", resolvedVariablesSource.get("var_1").value);
+        assertEquals("val2", resolvedVariablesSource.get("var2").value);
+        assertSame(resolvedVariablesSource.get("var2"), resolvedVariablesSource.get("var2"));
+        assertNull(resolvedVariablesSource.get("var3"));
+        assertNull(resolvedVariablesSource.get("var3"));
+    }
+
 }
@@ -0,0 +1,73 @@
+/*
+ * (C) Copyright 2018 Netcentric, A Cognizant Digital Business.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.aem.applysystemenvinstallhook;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class InstallHookMetricsTest {
+
+    private MBeanServer mBeanServer;
+    private ObjectName objectName;
+
+    @Before
+    public void setup() throws Exception {
+        mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        objectName = new ObjectName(InstallHookMetrics.OBJECT_NAME);
+        if (mBeanServer.isRegistered(objectName)) {
+            mBeanServer.unregisterMBean(objectName);
+        }
+    }
+
+    @Test
+    public void testPublishRuns() throws Exception {
+        InstallRunMetrics run1 = new InstallRunMetrics();
+        run1.add(InstallRunMetrics.SOURCE_LOAD_TIME_PREFIX + "JCR", 5);
+        run1.propertiesVisited = 10;
+        InstallHookMetrics.publish("group:package1:1.0", run1);
+
+        InstallRunMetrics run2 = new InstallRunMetrics();
+        run2.add(InstallRunMetrics.SOURCE_LOAD_TIME_PREFIX + "JCR", 2);
+        run2.add(InstallRunMetrics.SOURCE_LOAD_TIME_PREFIX + "JCR", 1);
+        run2.propertiesVisited = 4;
+        InstallHookMetrics.publish("group:package2:1.0", run2);
+
+        assertEquals(2L, mBeanServer.getAttribute(objectName, InstallHookMetrics.ATTR_RUN_COUNT));
+        assertEquals("group:package2:1.0", mBeanServer.getAttribute(objectName, InstallHookMetrics.ATTR_LAST_RUN_PACKAGE_ID));
+        Map<?, ?> lastRun = (Map<?, ?>) mBeanServer.getAttribute(objectName, InstallHookMetrics.ATTR_LAST_RUN);
+        assertEquals(Long.valueOf(3), lastRun.get("sourceLoadTimeMs.JCR"));
+        assertEquals(Long.valueOf(4), lastRun.get("propertiesVisited"));
+        Map<?, ?> totals = (Map<?, ?>) mBeanServer.getAttribute(objectName, InstallHookMetrics.ATTR_TOTALS);
+        assertEquals(Long.valueOf(8), totals.get("sourceLoadTimeMs.JCR"));
+        assertEquals(Long.valueOf(14), totals.get("propertiesVisited"));
+    }
+
+    @Test
+    public void testOnlyJdkClassesAreRegistered() throws Exception {
+        InstallHookMetrics.publish("group:package1:1.0", new InstallRunMetrics());
+
+        // classes of the bootstrap class loader do not keep the class loader of the hook in memory
+        String className = mBeanServer.getObjectInstance(objectName).getClassName();
+        assertNull(Class.forName(className).getClassLoader());
+        for (String attribute : new String[] { InstallHookMetrics.ATTR_RUN_COUNT, InstallHookMetrics.ATTR_LAST_RUN_PACKAGE_ID,
+                InstallHookMetrics.ATTR_LAST_RUN, InstallHookMetrics.ATTR_TOTALS }) {
+            assertNull(attribute, mBeanServer.getAttribute(objectName, attribute).getClass().getClassLoader());
+        }
+    }
+
+}
@@ -0,0 +1,264 @@
+/*
+ * (C) Copyright 2018 Netcentric, A Cognizant Digital Business.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.aem.applysystemenvinstallhook;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.jackrabbit.vault.fs.io.ZipArchive;
+import org.apache.jackrabbit.vault.packaging.PackageId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Spy;
+import org.slf4j.Logger;
+
+public class MissingEnvVarsCheckTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Spy
+    private InstallHookLogger logger = new InstallHookLogger();
+
+    private ZipArchive archive;
+
+    private VariablesSource varSource = new VariablesSource("testsource",
+            new HashMap<String, String>() {
+                {
+                    put("var1", "val1");
+                }
+            }) {
+    };
+
+    @Before
+    public void setup() throws IOException {
+        initMocks(this);
+        doNothing().when(logger).log(anyString());
+        doNothing().when(logger).log(any(Logger.class), anyString());
+
+        Map<String, String> entries = new LinkedHashMap<String, String>();
+        entries.put("jcr_root/apps/test/config/com.example.B.config.TEMPLATE", "b=\"${missing.b}\"\nvar1=\"${var1}\"\nx=\"${missing.x}\"");
+        entries.put("jcr_root/apps/test/config/com.example.A.config.TEMPLATE", "a=\"${missing.a}\"\nx=\"${missing.x}\"\nd=\"${missing.d:d}\"");
+        entries.put("jcr_root/apps/test/config/com.example.C.config", "c=\"${missing.c}\"");
+        entries.put("jcr_root/apps/test/config/com.example.D.config", "d=\"${missing.d}\"");
+        archive = new ZipArchive(createZip(entries));
+        archive.open(false);
+    }
+
+    @After
+    public void tearDown() {
+        archive.close();
+    }
+
+    @Test
+    public void testFindMissingEnvVars() throws IOException {
+        for (int parallelism : new int[] { 1, 4 }) {
+            MissingEnvVarsCheck check = new MissingEnvVarsCheck(logger, new VariablesMerger(logger), parallelism);
+
+            SortedMap<String, SortedSet<String>> missingEnvVars = check.findMissingEnvVars(archive,
+                    Arrays.asList("/apps/test/config/com.example.C.config"), null, varSource);
+
+            assertEquals(Arrays.asList("missing.a", "missing.b", "missing.c", "missing.x"),
+                    Arrays.asList(missingEnvVars.keySet().toArray()));
+            assertEquals(Arrays.asList("//jcr_root/apps/test/config/com.example.A.config.TEMPLATE",
+                    "//jcr_root/apps/test/config/com.example.B.config.TEMPLATE"),
+                    Arrays.asList(missingEnvVars.get("missing.x").toArray()));
+        }
+    }
+
+    @Test
+    public void testNoMissingEnvVars() throws IOException {
+        MissingEnvVarsCheck check = new MissingEnvVarsCheck(logger, new VariablesMerger(logger), 2);
+        assertTrue(check.findMissingEnvVars(archive, Collections.<String> emptyList(), null, new VariablesSource("all", null) {
+            @Override
+            public NamedValue get(String varName) {
+                return new NamedValue(getName(), varName, "value");
+            }
+        }).isEmpty());
+    }
+
+    @Test
+    public void testUseVariablesOfSubstitutionPlan() throws IOException {
+        SubstitutionPlan plan = new SubstitutionPlan(new PackageId("test", "test-package", "1.0"));
+        SortedMap<String, Map<String, List<VariablesMerger.EnvVarDeclaration>>> parsedEnvVars = new TreeMap<String, Map<String, List<VariablesMerger.EnvVarDeclaration>>>();
+        parsedEnvVars.put("/apps/test/config/com.example.C.config", Collections.singletonMap("c",
+                Arrays.asList(new VariablesMerger.EnvVarDeclaration("missing.from.plan", null))));
+        plan.addParsedEntry("//jcr_root/apps/test/config/com.example.C.config", parsedEnvVars);
+        MissingEnvVarsCheck check = new MissingEnvVarsCheck(logger, new VariablesMerger(logger), 1);
+
+        SortedMap<String, SortedSet<String>> missingEnvVars = check.findMissingEnvVars(archive,
+                Arrays.asList("/apps/test/config/com.example.C.config"), plan, varSource);
+
+        // the entry parsed for the plan already is not read again
+        assertEquals(Arrays.asList("missing.a", "missing.b", "missing.from.plan", "missing.x"),
+                Arrays.asList(missingEnvVars.keySet().toArray()));
+    }
+
+    @Test
+    public void testDocViewOfAncestor() throws Exception {
+        Map<String, String> entries = new LinkedHashMap<String, String>();
+        entries.put("jcr_root/.content.xml", "<jcr:root xmlns:jcr=\"http://www.jcp.org/jcr/1.0\" unrelated=\"${missing.root}\"/>");
+        entries.put("jcr_root/content/.content.xml", "<jcr:root xmlns:jcr=\"http://www.jcp.org/jcr/1.0\" unrelated=\"${missing.content}\">\n"
+                + "  <site title=\"${missing.site.title}\" url=\"${missing.site.url}\">\n"
+                + "    <page title=\"${missing.page.title}\"/>\n"
+                + "  </site>\n"
+                + "  <other title=\"${missing.other}\"/>\n"
+                + "</jcr:root>");
+        entries.put("jcr_root/content/config/.content.xml", "<jcr:root xmlns:jcr=\"http://www.jcp.org/jcr/1.0\" any=\"${missing.config}\"/>");
+        ZipArchive docViewArchive = new ZipArchive(createZip("docview-package.zip", entries));
+        docViewArchive.open(false);
+        try {
+            MissingEnvVarsCheck check = new MissingEnvVarsCheck(logger, new VariablesMerger(logger), 1);
+            List<String> configuredPaths = Arrays.asList("/content/site@url", "/content/site/page", "/content/config");
+
+            SortedMap<String, SortedSet<String>> missingEnvVars = check.findMissingEnvVars(docViewArchive, configuredPaths, null, varSource);
+
+            // only the variables of adjusted properties count, the ancestors' DocView files contain unrelated properties
+            assertEquals(Arrays.asList("missing.config", "missing.page.title", "missing.site.url"),
+                    Arrays.asList(missingEnvVars.keySet().toArray()));
+            assertEquals(Arrays.asList("//jcr_root/content/.content.xml"), Arrays.asList(missingEnvVars.get("missing.site.url").toArray()));
+
+            // the same for the variables of DocView files that were parsed for the plan already
+            SubstitutionPlan plan = new SubstitutionPlan(new PackageId("test", "test-package", "1.0"));
+            plan.addParsedEntry("//jcr_root/content/.content.xml", new SubstitutionPlanBuilder(new VariablesMerger(logger))
+                    .parseEnvVarDeclarations(new ByteArrayInputStream(entries.get("jcr_root/content/.content.xml").getBytes("UTF-8")),
+                            "/content"));
+            assertEquals(missingEnvVars, check.findMissingEnvVars(docViewArchive, configuredPaths, plan, varSource));
+        } finally {
+            docViewArchive.close();
+        }
+    }
+
+    @Test
+    public void testLargeAndBinaryEntries() throws IOException {
+        Map<String, String> entries = new LinkedHashMap<String, String>();
+        entries.put("jcr_root/apps/test/files/large.txt", StringUtils.repeat("a", 3 * PlaceholderPreScanner.BUFFER_SIZE) + "${missing.large}");
+        entries.put("jcr_root/apps/test/files/binary.bin", StringUtils.repeat("\u0000", 1000) + "${missing.binary}");
+        entries.put("jcr_root/apps/test/files/plain.txt", "no variables");
+        ZipArchive filesArchive = new ZipArchive(createZip("files-package.zip", entries));
+        filesArchive.open(false);
+        try {
+            for (int parallelism : new int[] { 1, 4 }) {
+                VariablesMerger variablesMerger = new VariablesMerger(logger);
+                MissingEnvVarsCheck check = new MissingEnvVarsCheck(logger, variablesMerger, parallelism);
+
+                SortedMap<String, SortedSet<String>> missingEnvVars = check.findMissingEnvVars(filesArchive,
+                        Arrays.asList("/apps/test/files/"), null, varSource);
+
+                assertEquals(Arrays.asList("missing.large"), Arrays.asList(missingEnvVars.keySet().toArray()));
+                assertEquals(1, variablesMerger.getSkippedBinaryEntriesCount());
+            }
+        } finally {
+            filesArchive.close();
+        }
+    }
+
+    @Test
+    public void testArchiveEntryIndex() throws IOException {
+        ArchiveEntryIndex entryIndex = ArchiveEntryIndex.build(archive);
+        assertEquals(4, entryIndex.size());
+        assertEquals(2, entryIndex.getTemplateEntries().size());
+        for (ArchiveEntryIndex.IndexedEntry entry : entryIndex.getEntries()) {
+            assertEquals(ArchiveEntryIndex.toJcrPath(entry.path), entry.jcrPath);
+            assertFalse(entry.docView);
+        }
+
+        assertEquals("/apps/test/page", ArchiveEntryIndex.toJcrPath("//jcr_root/apps/test/page/.content.xml"));
+        assertEquals("/apps/test/page", ArchiveEntryIndex.toJcrPath("//jcr_root/apps/test/page.xml"));
+        assertEquals("/apps/test/file.txt", ArchiveEntryIndex.toJcrPath("//jcr_root/apps/test/file.txt"));
+        assertEquals("/apps/test/page/jcr:content", ArchiveEntryIndex.toJcrPath("//jcr_root/apps/test/page/_jcr_content/.content.xml"));
+        assertEquals("/apps/test/file.txt", ArchiveEntryIndex.toJcrPath("//jcr_root/apps/test/file.txt.dir/.content.xml"));
+        assertEquals("/apps/test/file.txt/jcr:content",
+                ArchiveEntryIndex.toJcrPath("//jcr_root/apps/test/file.txt.dir/_jcr_content/.content.xml"));
+        assertEquals("", ArchiveEntryIndex.toJcrPath("//jcr_root/.content.xml"));
+        assertEquals("/apps/test/file.txt", ArchiveEntryIndex.toJcrPath("/apps/test/file.txt.dir", true));
+        assertEquals("/apps/test/page.xml", ArchiveEntryIndex.toJcrPath("/apps/test/page.xml", true));
+    }
+
+    @Test
+    public void testConfiguredPathsTrie() {
+        ConfiguredPathsTrie trie = ConfiguredPathsTrie.compile(Arrays.asList("/apps/test/config/com.example.C.config",
+                "/etc/path/to/node/jcr:content@testValue", "/etc/path/to/node/jcr:content@testValueOther", "/content/site/"));
+
+        assertTrue(trie.matches("/apps/test/config/com.example.C.config", false));
+        assertFalse(trie.matches("/apps/test/config/com.example.C", false));
+        assertFalse(trie.matches("/apps/test/config/com.example.C.config.TEMPLATE", false));
+        assertFalse(trie.matches("/apps/test/config", false));
+        assertTrue(trie.matches("/apps/test/config", true));
+
+        // the properties are contained in the DocView file of the node or of any ancestor
+        assertTrue(trie.matches("/etc/path/to/node/jcr:content", true));
+        assertTrue(trie.matches("/etc/path/to/node", true));
+        assertFalse(trie.matches("/etc/path/to/node", false));
+        assertFalse(trie.matches("/etc/path/to/node/jcr:content/child", true));
+
+        // everything below a node configured as a whole
+        assertTrue(trie.matches("/content/site", true));
+        assertTrue(trie.matches("/content/site/page/jcr:content", false));
+        assertFalse(trie.matches("/content/site2", false));
+        assertFalse(trie.matches("/other", true));
+
+        // properties of DocView files
+        assertTrue(trie.matchesProperty("/etc/path/to/node/jcr:content", "testValue"));
+        assertFalse(trie.matchesProperty("/etc/path/to/node/jcr:content", "other"));
+        assertFalse(trie.matchesProperty("/etc/path/to/node", "testValue"));
+        assertTrue(trie.matchesProperty("/content/site/page/jcr:content", "any"));
+        assertTrue(trie.matchesSubtree("/content/site/page"));
+        assertFalse(trie.matchesSubtree("/content"));
+        assertFalse(trie.matchesSubtree("/etc/path/to/node/jcr:content"));
+
+        assertFalse(ConfiguredPathsTrie.compile(Collections.<String> emptyList()).matches("/apps", true));
+        assertTrue(ConfiguredPathsTrie.compile(Arrays.asList("/")).matches("/apps", false));
+    }
+
+    private File createZip(Map<String, String> entries) throws IOException {
+        return createZip("test-package.zip", entries);
+    }
+
+    private File createZip(String fileName, Map<String, String> entries) throws IOException {
+        File file = temporaryFolder.newFile(fileName);
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file));
+        try {
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                out.putNextEntry(new ZipEntry(entry.getKey()));
+                out.write(entry.getValue().getBytes("UTF-8"));
+                out.closeEntry();
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+}
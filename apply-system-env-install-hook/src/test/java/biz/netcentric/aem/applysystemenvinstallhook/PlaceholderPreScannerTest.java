@@ -0,0 +1,67 @@
+/*
+ * (C) Copyright 2018 Netcentric, A Cognizant Digital Business.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.aem.applysystemenvinstallhook;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class PlaceholderPreScannerTest {
+
+    @Test
+    public void testContainsPlaceholderStart() throws Exception {
+        assertFalse(containsPlaceholderStart(""));
+        assertFalse(containsPlaceholderStart("no variables, only $ and { and } chars: $ {x} $"));
+        assertFalse(containsPlaceholderStart("Grüße € $"));
+        assertTrue(containsPlaceholderStart("${var}"));
+        assertTrue(containsPlaceholderStart("Grüße ${var:€}"));
+
+        // marker split across two reads
+        for (int markerPos : new int[] { PlaceholderPreScanner.BUFFER_SIZE - 2, PlaceholderPreScanner.BUFFER_SIZE - 1,
+                PlaceholderPreScanner.BUFFER_SIZE }) {
+            byte[] content = new byte[PlaceholderPreScanner.BUFFER_SIZE * 2];
+            Arrays.fill(content, (byte) 'a');
+            content[markerPos] = '$';
+            content[markerPos + 1] = '{';
+            assertTrue("marker at " + markerPos, PlaceholderPreScanner.containsPlaceholderStart(new ByteArrayInputStream(content)));
+        }
+    }
+
+    @Test
+    public void testContains() throws Exception {
+        byte[] search = ".TEMPLATE".getBytes("UTF-8");
+        assertFalse(PlaceholderPreScanner.contains(new ByteArrayInputStream("<settings.TEMPLAT/>".getBytes("UTF-8")), search));
+        assertTrue(PlaceholderPreScanner.contains(new ByteArrayInputStream("<settings.TEMPLATE/>".getBytes("UTF-8")), search));
+
+        // sequence split across two reads
+        for (int pos = PlaceholderPreScanner.BUFFER_SIZE - search.length; pos <= PlaceholderPreScanner.BUFFER_SIZE; pos++) {
+            byte[] content = new byte[PlaceholderPreScanner.BUFFER_SIZE * 2];
+            Arrays.fill(content, (byte) 'a');
+            System.arraycopy(search, 0, content, pos, search.length);
+            assertTrue("sequence at " + pos, PlaceholderPreScanner.contains(new ByteArrayInputStream(content), search));
+        }
+    }
+
+    @Test
+    public void testIndexOfPlaceholderStart() throws Exception {
+        byte[] bytes = "a$b${c}".getBytes("UTF-8");
+        assertEquals(3, PlaceholderPreScanner.indexOfPlaceholderStart(bytes, 0, bytes.length));
+        assertEquals(-1, PlaceholderPreScanner.indexOfPlaceholderStart(bytes, 0, 4));
+    }
+
+    private static boolean containsPlaceholderStart(String text) throws Exception {
+        return PlaceholderPreScanner.containsPlaceholderStart(new ByteArrayInputStream(text.getBytes("UTF-8")));
+    }
+
+}
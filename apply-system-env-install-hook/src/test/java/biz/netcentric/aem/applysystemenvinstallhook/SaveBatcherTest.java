@@ -0,0 +1,106 @@
+/*
+ * (C) Copyright 2018 Netcentric, A Cognizant Digital Business.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.aem.applysystemenvinstallhook;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.Spy;
+import org.slf4j.Logger;
+
+public class SaveBatcherTest {
+
+    @Spy
+    private InstallHookLogger logger = new InstallHookLogger();
+
+    @Mock
+    private Session session;
+
+    @Before
+    public void setup() {
+        initMocks(this);
+        doNothing().when(logger).log(anyString());
+        doNothing().when(logger).log(any(Logger.class), anyString());
+    }
+
+    @Test
+    public void testSaveOnlyOnceWithoutBatchSize() throws RepositoryException {
+        SaveBatcher saveBatcher = new SaveBatcher(session, logger, 0);
+        saveBatcher.itemsModified(10000);
+        saveBatcher.saveIfBatchFull();
+        verify(session, never()).save();
+
+        saveBatcher.saveAll();
+        verify(session, times(1)).save();
+        assertEquals(1, saveBatcher.getSavedBatchesCount());
+        verify(logger, never()).log(anyString());
+    }
+
+    @Test
+    public void testSaveInBatches() throws RepositoryException {
+        SaveBatcher saveBatcher = new SaveBatcher(session, logger, 3);
+        saveBatcher.itemsModified(2);
+        saveBatcher.saveIfBatchFull();
+        verify(session, never()).save();
+
+        saveBatcher.itemsModified(2);
+        saveBatcher.saveIfBatchFull();
+        verify(session, times(1)).save();
+
+        // the counter is reset after a save
+        saveBatcher.itemsModified(1);
+        saveBatcher.saveIfBatchFull();
+        verify(session, times(1)).save();
+
+        saveBatcher.saveAll();
+        verify(session, times(2)).save();
+        assertEquals(2, saveBatcher.getSavedBatchesCount());
+        verify(logger).log("Saved 5 modified items in 2 batches");
+    }
+
+    @Test
+    public void testFailedBatchIsDiscarded() throws RepositoryException {
+        SaveBatcher saveBatcher = new SaveBatcher(session, logger, 2);
+        saveBatcher.itemsModified(2);
+        saveBatcher.saveIfBatchFull();
+
+        RepositoryException saveException = new RepositoryException("test");
+        doThrow(saveException).when(session).save();
+        saveBatcher.itemsModified(3);
+        try {
+            saveBatcher.saveIfBatchFull();
+            fail("Expected exception of save() to be rethrown");
+        } catch (RepositoryException e) {
+            assertSame(saveException, e);
+        }
+        InOrder inOrder = inOrder(session);
+        inOrder.verify(session, times(2)).save();
+        inOrder.verify(session).refresh(false);
+        assertEquals(1, saveBatcher.getSavedBatchesCount());
+        verify(logger).log("Could not save batch 2 (3 modified items), 2 modified items of previous batches remain saved: " + saveException);
+    }
+
+}
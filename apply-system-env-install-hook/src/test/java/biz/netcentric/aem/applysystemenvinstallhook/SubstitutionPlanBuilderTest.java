@@ -0,0 +1,161 @@
+/*
+ * (C) Copyright 2018 Netcentric, A Cognizant Digital Business.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.aem.applysystemenvinstallhook;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.jackrabbit.vault.fs.io.ZipArchive;
+import org.apache.jackrabbit.vault.packaging.PackageId;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SubstitutionPlanBuilderTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final PackageId packageId = new PackageId("test", "test-package", "1.0");
+
+    @Test
+    public void testBuild() throws IOException {
+        Map<String, String> entries = new LinkedHashMap<String, String>();
+        entries.put("jcr_root/apps/test/config/com.example.A.config.TEMPLATE", "a=\"${var.a}\"");
+        entries.put("jcr_root/apps/test/.content.xml", "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<jcr:root xmlns:jcr=\"http://www.jcp.org/jcr/1.0\" jcr:primaryType=\"sling:Folder\" title=\"${not.in.template}\">\n"
+                + "  <settings.TEMPLATE jcr:primaryType=\"nt:unstructured\" url=\"${url:http://localhost}\" fixed=\"fixed\">\n"
+                + "    <_x0031_child jcr:primaryType=\"nt:unstructured\" hosts=\"[${host1},${host2}]\"/>\n"
+                + "  </settings.TEMPLATE>\n"
+                + "</jcr:root>");
+        entries.put("jcr_root/content/site/_jcr_content.TEMPLATE/.content.xml", "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<jcr:root xmlns:jcr=\"http://www.jcp.org/jcr/1.0\" jcr:primaryType=\"nt:unstructured\" jcr:title=\"${title}\"/>");
+        entries.put("jcr_root/content/broken.TEMPLATE/.content.xml", "<jcr:root");
+
+        SubstitutionPlan plan = build(entries);
+
+        assertEquals(Arrays.asList("/apps/test/config/com.example.A.config.TEMPLATE", "/apps/test/settings.TEMPLATE",
+                "/content/broken.TEMPLATE", "/content/site/jcr:content.TEMPLATE"), Arrays.asList(plan.getTemplatePaths().toArray()));
+        assertTrue(plan.isDiscoveryComplete());
+
+        assertTrue(plan.isPlanned("/apps/test/settings.TEMPLATE"));
+        assertEquals(Arrays.asList("/apps/test/settings.TEMPLATE", "/apps/test/settings.TEMPLATE/1child"),
+                Arrays.asList(plan.getPropertiesWithVariables("/apps/test/settings.TEMPLATE").keySet().toArray()));
+        assertEquals(Arrays.asList("url"),
+                Arrays.asList(plan.getPropertiesWithVariables("/apps/test/settings.TEMPLATE").get("/apps/test/settings.TEMPLATE").keySet()
+                        .toArray()));
+        assertEquals(2, plan.getPropertiesWithVariables("/apps/test/settings.TEMPLATE").get("/apps/test/settings.TEMPLATE/1child")
+                .get("hosts").size());
+
+        assertTrue(plan.isPlanned("/content/site/jcr:content.TEMPLATE"));
+        assertEquals(Arrays.asList("jcr:title"), Arrays.asList(plan.getPropertiesWithVariables("/content/site/jcr:content.TEMPLATE")
+                .get("/content/site/jcr:content.TEMPLATE").keySet().toArray()));
+
+        assertFalse(plan.isPlanned("/content/broken.TEMPLATE"));
+        assertFalse(plan.isPlanned("/apps/test"));
+
+        // the variables of parsed DocView files are kept for the check of missing variables, also outside of templates
+        List<String> varNames = new ArrayList<String>();
+        Map<String, Map<String, List<VariablesMerger.EnvVarDeclaration>>> parsedEnvVars = plan
+                .getEnvVarDeclarationsOfEntry("//jcr_root/apps/test/.content.xml");
+        for (Map<String, List<VariablesMerger.EnvVarDeclaration>> properties : parsedEnvVars.values()) {
+            for (List<VariablesMerger.EnvVarDeclaration> envVarDeclarations : properties.values()) {
+                for (VariablesMerger.EnvVarDeclaration envVarDeclaration : envVarDeclarations) {
+                    varNames.add(envVarDeclaration.name);
+                }
+            }
+        }
+        assertEquals(Arrays.asList("not.in.template", "url", "host1", "host2"), varNames);
+        assertEquals(Arrays.asList("/apps/test", "/apps/test/settings.TEMPLATE", "/apps/test/settings.TEMPLATE/1child"),
+                Arrays.asList(parsedEnvVars.keySet().toArray()));
+        assertEquals(Arrays.asList("title"), Arrays.asList(parsedEnvVars.get("/apps/test").keySet().toArray()));
+        assertNull(plan.getEnvVarDeclarationsOfEntry("//jcr_root/apps/test/config/com.example.A.config.TEMPLATE"));
+        assertNull(plan.getEnvVarDeclarationsOfEntry("//jcr_root/content/broken.TEMPLATE/.content.xml"));
+
+        // the archive entries are indexed in the same walk
+        ArchiveEntryIndex entryIndex = plan.getEntryIndex();
+        assertEquals(4, entryIndex.size());
+        assertEquals(1, entryIndex.getTemplateEntries().size());
+        List<String> jcrPaths = new ArrayList<String>();
+        for (ArchiveEntryIndex.IndexedEntry entry : entryIndex.getEntries()) {
+            jcrPaths.add(entry.jcrPath);
+        }
+        assertEquals(Arrays.asList("/apps/test/config/com.example.A.config.TEMPLATE", "/apps/test", "/content/site/jcr:content.TEMPLATE",
+                "/content/broken.TEMPLATE"), jcrPaths);
+    }
+
+    @Test
+    public void testDocViewOfTemplate() throws IOException {
+        Map<String, String> entries = new LinkedHashMap<String, String>();
+        // the suffix is only contained in the file name
+        entries.put("jcr_root/apps/test/settings.TEMPLATE.xml", "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<jcr:root xmlns:jcr=\"http://www.jcp.org/jcr/1.0\" jcr:primaryType=\"nt:unstructured\" url=\"${url}\"/>");
+        // a regular XML file (stored as nt:file with its full name) is no template
+        entries.put("jcr_root/apps/test/config.TEMPLATE.xml", "<config url=\"${url}\"/>");
+        entries.put("jcr_root/apps/test/data.xml", "<data><jcr.TEMPLATE/></data>");
+
+        SubstitutionPlan plan = build(entries);
+
+        assertEquals(Arrays.asList("/apps/test/settings.TEMPLATE"), Arrays.asList(plan.getTemplatePaths().toArray()));
+        assertTrue(plan.isDiscoveryComplete());
+        assertTrue(plan.isPlanned("/apps/test/settings.TEMPLATE"));
+        assertEquals(Arrays.asList("url"), Arrays.asList(plan.getPropertiesWithVariables("/apps/test/settings.TEMPLATE")
+                .get("/apps/test/settings.TEMPLATE").keySet().toArray()));
+        assertNull(plan.getEnvVarDeclarationsOfEntry("//jcr_root/apps/test/data.xml"));
+    }
+
+    @Test
+    public void testDiscoveryIncomplete() throws IOException {
+        Map<String, String> entries = new LinkedHashMap<String, String>();
+        entries.put("jcr_root/apps/test/.content.xml", "<jcr:root xmlns:jcr=\"http://www.jcp.org/jcr/1.0\"><settings.TEMPLATE>");
+
+        SubstitutionPlan plan = build(entries);
+
+        assertFalse(plan.isDiscoveryComplete());
+    }
+
+    private SubstitutionPlan build(Map<String, String> entries) throws IOException {
+        ZipArchive archive = new ZipArchive(createZip(entries));
+        archive.open(false);
+        try {
+            return new SubstitutionPlanBuilder(new VariablesMerger(new InstallHookLogger())).build(packageId, archive);
+        } finally {
+            archive.close();
+        }
+    }
+
+    private File createZip(Map<String, String> entries) throws IOException {
+        File file = temporaryFolder.newFile();
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file));
+        try {
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                out.putNextEntry(new ZipEntry(entry.getKey()));
+                out.write(entry.getValue().getBytes("UTF-8"));
+                out.closeEntry();
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+}
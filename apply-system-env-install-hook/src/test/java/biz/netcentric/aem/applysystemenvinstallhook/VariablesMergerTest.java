@@ -9,13 +9,23 @@
 package biz.netcentric.aem.applysystemenvinstallhook;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.MockitoAnnotations.initMocks;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 
+import org.apache.commons.io.IOUtils;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mockito;
@@ -78,4 +88,172 @@ public class VariablesMergerTest {
 
     }
 
+    @Test
+    public void testGetUsedVariableNames() {
+
+        VariablesMerger variablesMerger = new VariablesMerger(logger);
+
+        VariablesSource varSource = new VariablesSource("testsource",
+                new HashMap<String, String>() {
+                    {
+                        put("var1", "val1");
+                        put("prefix.var2", "val2");
+                    }
+                }) {
+        };
+
+        variablesMerger.applyEnvVars("no variables", varSource, "/test");
+        variablesMerger.applyEnvVars("x-${var1}-x-${prefix.var2}", varSource, "/test");
+        variablesMerger.applyEnvVars("x-${varNotInEnv:defaultVal}-x", varSource, "/test");
+        variablesMerger.applyEnvVars("x-${var1:defaultVal}-${varNotSet}", varSource, "/test");
+
+        // sorted and including variables without value
+        assertEquals(Arrays.asList("prefix.var2", "var1", "varNotInEnv", "varNotSet"),
+                new ArrayList<String>(variablesMerger.getUsedVariableNames()));
+    }
+
+    @Test
+    public void testApplyEnvVarsEdgeCases() {
+
+        VariablesMerger variablesMerger = new VariablesMerger(logger);
+
+        VariablesSource varSource = new VariablesSource("testsource",
+                new HashMap<String, String>() {
+                    {
+                        put("var1", "val1");
+                        put("a${b", "nested");
+                    }
+                }) {
+        };
+
+        String noVars = "no variables, only $ and { and }";
+        assertSame(noVars, variablesMerger.applyEnvVars(noVars, varSource, "/test"));
+        String onlyEmptyPlaceholder = "x-${}-x";
+        assertSame(onlyEmptyPlaceholder, variablesMerger.applyEnvVars(onlyEmptyPlaceholder, varSource, "/test"));
+
+        assertEquals("x-${var1", variablesMerger.applyEnvVars("x-${var1", varSource, "/test"));
+        assertEquals("$val1", variablesMerger.applyEnvVars("$${var1}", varSource, "/test"));
+        assertEquals("${}val1", variablesMerger.applyEnvVars("${}${var1}", varSource, "/test"));
+        assertEquals("nested}", variablesMerger.applyEnvVars("${a${b}}", varSource, "/test"));
+        assertEquals("b:c", variablesMerger.applyEnvVars("${varNotInEnv:b:c}", varSource, "/test"));
+        assertEquals("${not\\ found}", variablesMerger.applyEnvVars("${not found}", varSource, "/test.config"));
+    }
+
+    @Test
+    public void testGetEnvVarDeclarations() {
+
+        VariablesMerger variablesMerger = new VariablesMerger(logger);
+
+        assertTrue(variablesMerger.getEnvVarDeclarations("no variables").isEmpty());
+
+        List<VariablesMerger.EnvVarDeclaration> declarations = variablesMerger
+                .getEnvVarDeclarations("a=${var1}\nb=${var2:default:with:colons}\nc=${}\nd=${var3:}");
+        assertEquals(3, declarations.size());
+        assertEquals("var1", declarations.get(0).name);
+        assertNull(declarations.get(0).defaultVal);
+        assertEquals("var2", declarations.get(1).name);
+        assertEquals("default:with:colons", declarations.get(1).defaultVal);
+        assertEquals("var3", declarations.get(2).name);
+        assertEquals("", declarations.get(2).defaultVal);
+    }
+
+    @Test
+    public void testApplyEnvVarsStreaming() throws IOException {
+
+        VariablesMerger variablesMerger = new VariablesMerger(logger);
+
+        VariablesSource varSource = new VariablesSource("testsource",
+                new HashMap<String, String>() {
+                    {
+                        put("var1", "val1");
+                        put("prefix.var2", "val2 with spaces");
+                    }
+                }) {
+        };
+
+        String[] texts = new String[] {
+                "no variables",
+                "a=${var1}\nb=\"${prefix.var2}\"\nc=${varNotInEnv:default}\nd=${varNotInEnv}\ne=$${var1}$",
+                "${}${var1}${var1",
+                "${a${b}} and ${var1:x:y} at end ${var1}",
+                "unterminated ${var1 till the end"
+        };
+
+        for (String text : texts) {
+            for (String path : new String[] { "/test.xml", "/test.config" }) {
+                String expected = variablesMerger.applyEnvVars(text, varSource, path);
+                // chunk sizes that split placeholders at all possible positions
+                for (int chunkSize = 1; chunkSize <= text.length() + 1; chunkSize++) {
+                    Reader reader = new VariablesSubstitutingReader(new StringReader(text), variablesMerger, varSource, path, chunkSize);
+                    assertEquals("chunk size " + chunkSize + " for text " + text, expected, IOUtils.toString(reader));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testAggregatedLogging() {
+        VariablesSource varSource = new VariablesSource("testsource",
+                new HashMap<String, String>() {
+                    {
+                        put("var1", "val1");
+                    }
+                }) {
+        };
+
+        VariablesMerger variablesMerger = new VariablesMerger(logger);
+        variablesMerger.setVerbosity(VariablesMerger.Verbosity.PATH);
+        assertEquals("val1-val1-x", variablesMerger.applyEnvVars("${var1}-${var1}-${var2:x}", varSource, "/test1.TEMPLATE"));
+        assertEquals("val1", variablesMerger.applyEnvVars("${var1}", varSource, "/test2"));
+        Mockito.verify(logger, Mockito.never()).log(anyString());
+        variablesMerger.logAggregatedReplacements();
+        Mockito.verify(logger).log("/test1: 3 variables replaced");
+        Mockito.verify(logger).log("/test2: 1 variables replaced");
+
+        variablesMerger = new VariablesMerger(logger);
+        variablesMerger.setVerbosity(VariablesMerger.Verbosity.VARIABLE);
+        variablesMerger.applyEnvVars("${var1}-${var1}-${var2:x}-${var2:y}", varSource, "/test1");
+        variablesMerger.logAggregatedReplacements();
+        Mockito.verify(logger).log("var1=\"val1\" (replaced from testsource) replaced 2 times");
+        Mockito.verify(logger).log("var2=\"x\" (default in package, other defaults used as well) replaced 2 times");
+        assertTrue(variablesMerger.getReplacementSummary().contains("Total variables replaced: 4"));
+    }
+
+    @Test
+    public void testCountingFromMultipleThreads() throws Exception {
+        final VariablesSource varSource = new VariablesSource("testsource",
+                new HashMap<String, String>() {
+                    {
+                        put("var1", "val1");
+                    }
+                }) {
+        };
+
+        final VariablesMerger variablesMerger = new VariablesMerger(logger);
+        variablesMerger.setVerbosity(VariablesMerger.Verbosity.SUMMARY);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 4; i++) {
+            final String path = "/test" + i;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 1000; j++) {
+                        variablesMerger.applyEnvVars("${var1}-${var2:x}", varSource, path);
+                        variablesMerger.countChangedItem();
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(Integer.valueOf(4000), variablesMerger.getReplacementCounts().get("testsource"));
+        assertEquals(4000, variablesMerger.getChangedItemsCount());
+        assertTrue(variablesMerger.getReplacementSummary().contains("Total variables replaced: 8000"));
+    }
+
 }
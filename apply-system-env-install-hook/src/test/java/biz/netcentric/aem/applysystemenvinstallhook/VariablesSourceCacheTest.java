@@ -0,0 +1,130 @@
+/*
+ * (C) Copyright 2018 Netcentric, A Cognizant Digital Business.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.aem.applysystemenvinstallhook;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import javax.jcr.PathNotFoundException;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.jackrabbit.vault.fs.io.ImportOptions;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import biz.netcentric.aem.applysystemenvinstallhook.sources.JcrVarsSource;
+import biz.netcentric.aem.applysystemenvinstallhook.sources.SystemPropertiesVarsSource;
+
+public class VariablesSourceCacheTest {
+
+    private VariablesSource source = new VariablesSource("testsource", new HashMap<String, String>()) {
+    };
+
+    @Before
+    public void setup() {
+        VariablesSourceCache.invalidate("test setup");
+    }
+
+    @After
+    public void tearDown() {
+        System.clearProperty(VariablesSourceCache.SYS_PROP_TTL);
+        VariablesSourceCache.invalidate("test teardown");
+    }
+
+    @Test
+    public void testPutAndInvalidate() {
+        VariablesSourceCache.put("testsource", source, VariablesSourceCache.getVersion());
+        assertSame(source, VariablesSourceCache.get("testsource"));
+        assertNull(VariablesSourceCache.get("othersource"));
+
+        VariablesSourceCache.invalidate("test");
+        assertNull(VariablesSourceCache.get("testsource"));
+    }
+
+    @Test
+    public void testInvalidatedWhileLoading() {
+        long version = VariablesSourceCache.getVersion();
+        // a change is received while the source is loaded, hence the loaded values may be outdated already
+        VariablesSourceCache.invalidate("test");
+        VariablesSourceCache.put("testsource", source, version);
+        assertNull(VariablesSourceCache.get("testsource"));
+
+        VariablesSourceCache.put("testsource", source, VariablesSourceCache.getVersion());
+        assertSame(source, VariablesSourceCache.get("testsource"));
+    }
+
+    @Test
+    public void testNewerSourceIsKept() {
+        long version = VariablesSourceCache.getVersion();
+        VariablesSourceCache.invalidate("test");
+        VariablesSource newerSource = new VariablesSource("testsource", new HashMap<String, String>()) {
+        };
+        VariablesSourceCache.put("testsource", newerSource, VariablesSourceCache.getVersion());
+        // a source loaded before the invalidation finishes last
+        VariablesSourceCache.put("testsource", source, version);
+        assertSame(newerSource, VariablesSourceCache.get("testsource"));
+    }
+
+    @Test
+    public void testOnlyUsedIfRequested() {
+        InstallHookLogger logger = new InstallHookLogger();
+        logger.setOptions(new ImportOptions());
+        List<String> sourceNames = Arrays.asList(SystemPropertiesVarsSource.NAME);
+
+        CombinedVariablesSource.forSources(sourceNames, logger, mock(Session.class), false);
+        assertNull(VariablesSourceCache.get(SystemPropertiesVarsSource.NAME));
+
+        CombinedVariablesSource combinedSource = CombinedVariablesSource.forSources(sourceNames, logger, mock(Session.class), true);
+        assertSame(combinedSource.sources.get(0), VariablesSourceCache.get(SystemPropertiesVarsSource.NAME));
+    }
+
+    @Test
+    public void testTtl() throws InterruptedException {
+        System.setProperty(VariablesSourceCache.SYS_PROP_TTL, "1");
+        VariablesSourceCache.put("testsource", source, VariablesSourceCache.getVersion());
+        assertSame(source, VariablesSourceCache.get("testsource"));
+        Thread.sleep(1100);
+        assertNull(VariablesSourceCache.get("testsource"));
+
+        System.setProperty(VariablesSourceCache.SYS_PROP_TTL, "0");
+        VariablesSourceCache.put("testsource", source, VariablesSourceCache.getVersion());
+        assertNull(VariablesSourceCache.get("testsource"));
+    }
+
+    @Test
+    public void testNotCacheableSources() throws RepositoryException {
+        VariablesSource failedSource = new VariablesSource("failedsource", new HashMap<String, String>()) {
+            {
+                setNotCacheable();
+            }
+        };
+        VariablesSourceCache.put("failedsource", failedSource, VariablesSourceCache.getVersion());
+        assertNull(VariablesSourceCache.get("failedsource"));
+
+        Session session = mock(Session.class);
+        when(session.getNode(anyString())).thenThrow(new PathNotFoundException());
+        InstallHookLogger logger = new InstallHookLogger();
+        logger.setOptions(new ImportOptions());
+        JcrVarsSource jcrSource = new JcrVarsSource(logger, session);
+        assertFalse(jcrSource.isCacheable());
+        VariablesSourceCache.put(JcrVarsSource.NAME, jcrSource, VariablesSourceCache.getVersion());
+        assertNull(VariablesSourceCache.get(JcrVarsSource.NAME));
+    }
+
+}
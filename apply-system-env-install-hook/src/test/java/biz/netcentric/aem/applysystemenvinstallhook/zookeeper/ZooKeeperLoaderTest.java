@@ -0,0 +1,121 @@
+/*
+ * (C) Copyright 2018 Netcentric, A Cognizant Digital Business.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.aem.applysystemenvinstallhook.zookeeper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.server.ServerCnxnFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ZooKeeperLoaderTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private ServerCnxnFactory serverFactory;
+    private ZooKeeperConfig config;
+    private ZooKeeper adminSession;
+
+    @Before
+    public void setup() throws Exception {
+        serverFactory = ZooKeeperSessionManagerTest.startServer(temporaryFolder);
+        System.setProperty(ZooKeeperConfig.SYS_PROP_ZOOKEEPER_HOSTS, "127.0.0.1:" + serverFactory.getLocalPort());
+        System.setProperty(ZooKeeperConfig.SYS_PROP_ZOOKEEPER_PATH, "/test");
+        System.setProperty(ZooKeeperConfig.SYS_PROP_ZOOKEEPER_CONNECT_TIMEOUT, "3000");
+        config = new ZooKeeperConfig();
+
+        adminSession = ZooKeeperSessionManager.getInstance().acquire(config);
+        create("/test", "a=1\nb=2");
+        create("/test/b", "child-b");
+        create("/test/c.properties", "c=3\na=overridden");
+        create("/test/empty", "");
+    }
+
+    @After
+    public void tearDown() {
+        ZooKeeperSessionManager.getInstance().release(adminSession);
+        serverFactory.shutdown();
+        System.clearProperty(ZooKeeperConfig.SYS_PROP_ZOOKEEPER_HOSTS);
+        System.clearProperty(ZooKeeperConfig.SYS_PROP_ZOOKEEPER_PATH);
+        System.clearProperty(ZooKeeperConfig.SYS_PROP_ZOOKEEPER_CONNECT_TIMEOUT);
+    }
+
+    @Test
+    public void testLoadVariables() throws Exception {
+        Map<String, String> variables = new ZooKeeperLoader().loadVariables(config);
+
+        Map<String, String> expectedVariables = new HashMap<String, String>();
+        // children are applied in alphabetical order after the data of the znode itself
+        expectedVariables.put("a", "overridden");
+        expectedVariables.put("b", "child-b");
+        expectedVariables.put("c", "3");
+        expectedVariables.put("empty", "");
+        assertEquals(expectedVariables, variables);
+    }
+
+    @Test
+    public void testReloadFromWatcher() throws Exception {
+        final ZooKeeperLoader loader = new ZooKeeperLoader();
+        final AtomicReference<Map<String, String>> reloadedVariables = new AtomicReference<Map<String, String>>();
+        final AtomicBoolean calledOnEventThread = new AtomicBoolean();
+        final CountDownLatch reloaded = new CountDownLatch(1);
+        Watcher watcher = new Watcher() {
+            @Override
+            public void process(WatchedEvent event) {
+                if (event.getType() == Event.EventType.None || reloaded.getCount() == 0) {
+                    return;
+                }
+                calledOnEventThread.set(ZooKeeperLoader.isEventThread());
+                try {
+                    reloadedVariables.set(new ZooKeeperLoader().loadVariables(config));
+                } catch (Exception e) {
+                    // reloadedVariables stays null
+                }
+                reloaded.countDown();
+            }
+        };
+        try {
+            assertEquals("3", loader.loadVariables(config, watcher).get("c"));
+            assertNull(reloadedVariables.get());
+
+            long startTime = System.currentTimeMillis();
+            adminSession.setData("/test/c.properties", "c=4".getBytes("UTF-8"), -1);
+            assertTrue(reloaded.await(10, TimeUnit.SECONDS));
+            assertTrue(calledOnEventThread.get());
+            assertEquals("4", reloadedVariables.get().get("c"));
+            // the children are not loaded by waiting for async responses (that would only end with the connect timeout)
+            assertTrue(System.currentTimeMillis() - startTime < config.getConnectTimeout());
+        } finally {
+            loader.closeSession();
+        }
+    }
+
+    private void create(String path, String data) throws Exception {
+        adminSession.create(path, data.getBytes("UTF-8"), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+    }
+
+}
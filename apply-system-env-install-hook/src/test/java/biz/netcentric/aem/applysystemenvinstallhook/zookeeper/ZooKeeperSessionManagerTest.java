@@ -0,0 +1,168 @@
+/*
+ * (C) Copyright 2018 Netcentric, A Cognizant Digital Business.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.aem.applysystemenvinstallhook.zookeeper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.server.ServerCnxnFactory;
+import org.apache.zookeeper.server.ZooKeeperServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ZooKeeperSessionManagerTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private ServerCnxnFactory serverFactory;
+
+    @Before
+    public void setup() throws Exception {
+        serverFactory = startServer(temporaryFolder);
+        System.setProperty(ZooKeeperConfig.SYS_PROP_ZOOKEEPER_HOSTS, "127.0.0.1:" + serverFactory.getLocalPort());
+        System.setProperty(ZooKeeperConfig.SYS_PROP_ZOOKEEPER_PATH, "/test");
+        System.setProperty(ZooKeeperConfig.SYS_PROP_ZOOKEEPER_CONNECT_TIMEOUT, "5000");
+    }
+
+    @After
+    public void tearDown() {
+        serverFactory.shutdown();
+        System.clearProperty(ZooKeeperConfig.SYS_PROP_ZOOKEEPER_HOSTS);
+        System.clearProperty(ZooKeeperConfig.SYS_PROP_ZOOKEEPER_PATH);
+        System.clearProperty(ZooKeeperConfig.SYS_PROP_ZOOKEEPER_CONNECT_TIMEOUT);
+        System.clearProperty(ZooKeeperConfig.SYS_PROP_ZOOKEEPER_CON_RETRIES);
+    }
+
+    static ServerCnxnFactory startServer(TemporaryFolder temporaryFolder) throws IOException, InterruptedException {
+        ZooKeeperServer server = new ZooKeeperServer(temporaryFolder.newFolder(), temporaryFolder.newFolder(), 2000);
+        ServerCnxnFactory serverFactory = ServerCnxnFactory.createFactory(new InetSocketAddress("127.0.0.1", 0), 10);
+        serverFactory.startup(server);
+        return serverFactory;
+    }
+
+    @Test
+    public void testRefCounting() throws Exception {
+        ZooKeeperSessionManager sessionManager = new ZooKeeperSessionManager();
+        ZooKeeperConfig config = new ZooKeeperConfig();
+
+        ZooKeeper session1 = sessionManager.acquire(config);
+        ZooKeeper session2 = sessionManager.acquire(config);
+        assertSame(session1, session2);
+        assertEquals(2, sessionManager.getRefCount());
+
+        sessionManager.release(session1);
+        assertEquals(1, sessionManager.getRefCount());
+        assertTrue(session1.getState().isConnected());
+
+        // releasing a replaced session has no effect
+        sessionManager.release(null);
+        assertEquals(1, sessionManager.getRefCount());
+
+        sessionManager.release(session2);
+        assertEquals(0, sessionManager.getRefCount());
+        assertFalse(sessionManager.hasSession());
+    }
+
+    @Test
+    public void testCloseWhenUnused() throws Exception {
+        ZooKeeperSessionManager sessionManager = new ZooKeeperSessionManager();
+        ZooKeeperConfig config = new ZooKeeperConfig();
+
+        ZooKeeper session = sessionManager.acquire(config);
+        sessionManager.release(session);
+        assertFalse(session.getState().isAlive());
+        assertFalse(sessionManager.hasSession());
+
+        // a new session is connected for the next load
+        ZooKeeper newSession = sessionManager.acquire(config);
+        assertNotSame(session, newSession);
+        assertTrue(newSession.getState().isConnected());
+        sessionManager.release(newSession);
+        assertFalse(newSession.getState().isAlive());
+    }
+
+    @Test
+    public void testConcurrentAcquire() throws Exception {
+        final ZooKeeperSessionManager sessionManager = new ZooKeeperSessionManager();
+        final ZooKeeperConfig config = new ZooKeeperConfig();
+
+        int threads = 4;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<ZooKeeper>> sessions = new ArrayList<Future<ZooKeeper>>();
+            for (int i = 0; i < threads; i++) {
+                sessions.add(executor.submit(new Callable<ZooKeeper>() {
+                    @Override
+                    public ZooKeeper call() throws Exception {
+                        return sessionManager.acquire(config);
+                    }
+                }));
+            }
+            ZooKeeper session = sessions.get(0).get();
+            for (Future<ZooKeeper> otherSession : sessions) {
+                assertSame(session, otherSession.get());
+            }
+            assertEquals(threads, sessionManager.getRefCount());
+            for (int i = 0; i < threads; i++) {
+                sessionManager.release(session);
+            }
+            assertFalse(session.getState().isAlive());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testConnectTimeout() throws Exception {
+        serverFactory.shutdown();
+        System.setProperty(ZooKeeperConfig.SYS_PROP_ZOOKEEPER_CONNECT_TIMEOUT, "500");
+        ZooKeeperSessionManager sessionManager = new ZooKeeperSessionManager();
+
+        long startTime = System.currentTimeMillis();
+        try {
+            sessionManager.acquire(new ZooKeeperConfig());
+            fail("Expected connection loss");
+        } catch (KeeperException.ConnectionLossException e) {
+            // expected
+        }
+        assertTrue(System.currentTimeMillis() - startTime < 5000);
+        assertEquals(0, sessionManager.getRefCount());
+        assertFalse(sessionManager.hasSession());
+    }
+
+    @Test
+    public void testAttemptTimeout() {
+        System.setProperty(ZooKeeperConfig.SYS_PROP_ZOOKEEPER_CONNECT_TIMEOUT, "15000");
+        System.setProperty(ZooKeeperConfig.SYS_PROP_ZOOKEEPER_CON_RETRIES, "2");
+        assertEquals(5000, ZooKeeperSessionManager.getAttemptTimeout(new ZooKeeperConfig()));
+
+        System.setProperty(ZooKeeperConfig.SYS_PROP_ZOOKEEPER_CON_RETRIES, "0");
+        assertEquals(15000, ZooKeeperSessionManager.getAttemptTimeout(new ZooKeeperConfig()));
+    }
+
+}
@@ -0,0 +1,87 @@
+/*
+ * (C) Copyright 2018 Netcentric, A Cognizant Digital Business.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.aem.applysystemenvinstallhook;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.jackrabbit.vault.fs.io.ImportOptions;
+
+/** Generates the input texts and variable sources used by the benchmarks. */
+final class BenchmarkData {
+
+    static final String PROPERTY_PATH = "/apps/bench/agent/jcr:content@transportUri";
+    static final String CONFIG_PATH = "/apps/bench/config/com.example.BenchService.config";
+
+    static final int VARS_PER_SOURCE = 200;
+
+    private static final int SMALL_SIZE = 120;
+    private static final int CONFIG_SIZE = 1024 * 1024;
+
+    private BenchmarkData() {
+    }
+
+    /** @param size "small" for a typical property value, "config1mb" for an OSGi .config file of 1 MB
+     * @param density "none", "sparse" (every 50th line has a placeholder) or "dense" (every line has a placeholder) */
+    static String text(String size, String density) {
+        int targetLength = "small".equals(size) ? SMALL_SIZE : CONFIG_SIZE;
+        int placeholderEvery = "dense".equals(density) ? 1 : "sparse".equals(density) ? 50 : 0;
+
+        StringBuilder sb = new StringBuilder(targetLength + 256);
+        int line = 0;
+        while (sb.length() < targetLength) {
+            sb.append("bench.property.").append(line).append('=');
+            if (placeholderEvery > 0 && line % placeholderEvery == 0) {
+                if (line % 3 == 0) {
+                    sb.append("\"${src0.var").append(line % VARS_PER_SOURCE).append("}\"");
+                } else if (line % 3 == 1) {
+                    sb.append("\"https://${host.var.missing").append(line).append(":www.example.com}/path\"");
+                } else {
+                    sb.append("\"${src0.var").append(line % VARS_PER_SOURCE).append("}/${src0.var").append((line + 1) % VARS_PER_SOURCE)
+                            .append("}\"");
+                }
+            } else {
+                sb.append("\"plain value without any variable, number ").append(line).append('"');
+            }
+            sb.append('\n');
+            line++;
+        }
+        return sb.toString();
+    }
+
+    static VariablesSource source(final String name, final int index) {
+        Map<String, String> vars = new HashMap<String, String>();
+        for (int i = 0; i < VARS_PER_SOURCE; i++) {
+            vars.put("src" + index + ".var" + i, "value " + i + " of " + name);
+        }
+        return new VariablesSource(name, vars) {
+        };
+    }
+
+    static CombinedVariablesSource combinedSource(int sourceCount) {
+        List<VariablesSource> sources = new ArrayList<VariablesSource>();
+        List<String> names = new ArrayList<String>();
+        for (int i = 0; i < sourceCount; i++) {
+            String name = "source" + i;
+            names.add(name);
+            sources.add(source(name, i));
+        }
+        return new CombinedVariablesSource(names.toString(), sources);
+    }
+
+    static InstallHookLogger logger() {
+        InstallHookLogger logger = new InstallHookLogger();
+        // no progress listener: messages go to slf4j only (no binding on the benchmark classpath)
+        logger.setOptions(new ImportOptions());
+        return logger;
+    }
+
+}
@@ -0,0 +1,75 @@
+/*
+ * (C) Copyright 2018 Netcentric, A Cognizant Digital Business.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.aem.applysystemenvinstallhook;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import biz.netcentric.aem.applysystemenvinstallhook.VariablesSource.NamedValue;
+
+/** Measures {@link CombinedVariablesSource#get(String)} and the flat table {@link ResolvedVariablesSource#get(String)} for source chains of
+ * 1-4 sources, for variables found in the first source, found in the last source and not found at all.
+ *
+ * Run with <code>java -jar target/benchmarks.jar CombinedVariablesSourceBenchmark</code>. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CombinedVariablesSourceBenchmark {
+
+    @Param({ "1", "2", "3", "4" })
+    public int sourceCount;
+
+    @Param({ "false", "true" })
+    public boolean resolved;
+
+    private VariablesSource variablesSource;
+
+    private String varInFirstSource;
+    private String varInLastSource;
+    private String varNotFound;
+
+    @Setup
+    public void setup() {
+        CombinedVariablesSource combinedSource = BenchmarkData.combinedSource(sourceCount);
+        variablesSource = resolved ? new ResolvedVariablesSource(combinedSource) : combinedSource;
+        varInFirstSource = "src0.var" + (BenchmarkData.VARS_PER_SOURCE / 2);
+        varInLastSource = "src" + (sourceCount - 1) + ".var" + (BenchmarkData.VARS_PER_SOURCE / 2);
+        varNotFound = "not.existing.var";
+    }
+
+    @Benchmark
+    public NamedValue getFromFirstSource() {
+        return variablesSource.get(varInFirstSource);
+    }
+
+    @Benchmark
+    public NamedValue getFromLastSource() {
+        return variablesSource.get(varInLastSource);
+    }
+
+    @Benchmark
+    public NamedValue getNotFound() {
+        return variablesSource.get(varNotFound);
+    }
+
+}
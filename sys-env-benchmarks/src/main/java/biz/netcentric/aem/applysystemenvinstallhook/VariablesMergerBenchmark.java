@@ -0,0 +1,78 @@
+/*
+ * (C) Copyright 2018 Netcentric, A Cognizant Digital Business.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.aem.applysystemenvinstallhook;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Measures {@link VariablesMerger#applyEnvVars(String, VariablesSource, String)}, its streaming variant
+ * {@link VariablesSubstitutingReader} and {@link VariablesMerger#getEnvVarDeclarations(String)} for property values and OSGi config files.
+ *
+ * Run with <code>java -jar target/benchmarks.jar VariablesMergerBenchmark</code>. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class VariablesMergerBenchmark {
+
+    @Param({ "small", "config1mb" })
+    public String size;
+
+    @Param({ "none", "sparse", "dense" })
+    public String density;
+
+    private String text;
+    private String path;
+    private VariablesMerger variablesMerger;
+    private VariablesSource variablesSource;
+
+    @Setup
+    public void setup() {
+        text = BenchmarkData.text(size, density);
+        path = "small".equals(size) ? BenchmarkData.PROPERTY_PATH : BenchmarkData.CONFIG_PATH;
+        variablesMerger = new VariablesMerger(BenchmarkData.logger());
+        variablesSource = BenchmarkData.combinedSource(3);
+    }
+
+    @Benchmark
+    public String applyEnvVars() {
+        return variablesMerger.applyEnvVars(text, variablesSource, path);
+    }
+
+    @Benchmark
+    public long applyEnvVarsStreaming() throws IOException {
+        Reader reader = new VariablesSubstitutingReader(new StringReader(text), variablesMerger, variablesSource, path);
+        return IOUtils.copyLarge(reader, NullWriter.NULL_WRITER);
+    }
+
+    @Benchmark
+    public List<VariablesMerger.EnvVarDeclaration> getEnvVarDeclarations() {
+        return variablesMerger.getEnvVarDeclarations(text);
+    }
+
+}
@@ -8,4 +8,25 @@ public interface PackageReinstallerMBean {
 
     @Description("Installs all env-specific packages")
     void installEnvSpecificPackages();
+
+    @Description("Number of change events waiting to be handled")
+    int getQueuedEventsCount();
+
+    @Description("Number of change events handled")
+    long getHandledEventsCount();
+
+    @Description("Number of changes that led to a scheduled reinstall (changes are coalesced into reinstall runs)")
+    long getScheduledChangesCount();
+
+    @Description("Number of reinstall runs triggered by changes")
+    long getReinstallRunsCount();
+
+    @Description("Duration of the last reinstall run in ms (-1 if there was no run yet)")
+    long getLastReinstallDuration();
+
+    @Description("Whether a reinstall is waiting to be run")
+    boolean isReinstallPending();
+
+    @Description("Whether a reinstall is running")
+    boolean isReinstallRunning();
 }
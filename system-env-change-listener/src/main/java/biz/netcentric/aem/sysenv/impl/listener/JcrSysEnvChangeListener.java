@@ -9,8 +9,10 @@
 package biz.netcentric.aem.sysenv.impl.listener;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
@@ -38,6 +40,9 @@ public class JcrSysEnvChangeListener {
     @Reference
     PackageReinstaller packageReinstaller;
 
+    @Reference
+    ReinstallScheduler reinstallScheduler;
+
     @Reference
     private SlingRepository repository;
 
@@ -116,6 +121,7 @@ public class JcrSysEnvChangeListener {
         public void onEvent(EventIterator events) {
 
             List<String> changedProperties = new ArrayList<String>();
+            Set<String> changedVariables = new HashSet<String>();
 
             while (events.hasNext()) {
                 Event event = events.nextEvent();
@@ -123,6 +129,9 @@ public class JcrSysEnvChangeListener {
                 LOG.debug("Received event {}", event);
                 try {
                     changedProperties.add(event.getPath());
+                    if (event.getPath().startsWith(SYSTEM_ENV_NODE_PATH + "/")) {
+                        changedVariables.add(StringUtils.substringAfterLast(event.getPath(), "/"));
+                    }
                 } catch (RepositoryException e) {
                     LOG.debug("Could not get path from event: " + e, e);
                 }
@@ -134,10 +143,10 @@ public class JcrSysEnvChangeListener {
             }
 
             if (!changedProperties.isEmpty()) {
-                LOG.info("Reinstalling env-specific packages since the following properties have changed\n{}",
+                LOG.info("Scheduling reinstall of env-specific packages since the following properties have changed\n{}",
                         StringUtils.join(changedProperties, "\n"));
 
-                packageReinstaller.installEnvSpecificPackages();
+                reinstallScheduler.scheduleReinstall(changedVariables);
             }
 
         }
@@ -9,14 +9,30 @@
 package biz.netcentric.aem.sysenv.impl.listener;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 import javax.jcr.Node;
 import javax.jcr.Property;
 import javax.jcr.PropertyIterator;
+import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.jcr.Value;
 
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.PropertyUnbounded;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.jackrabbit.vault.fs.io.ImportOptions;
@@ -25,31 +41,73 @@ import org.apache.jackrabbit.vault.packaging.JcrPackageManager;
 import org.apache.jackrabbit.vault.packaging.PackageId;
 import org.apache.jackrabbit.vault.packaging.Packaging;
 import org.apache.sling.commons.classloader.DynamicClassLoaderManager;
+import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.apache.sling.discovery.TopologyEvent;
 import org.apache.sling.discovery.TopologyEventListener;
 import org.apache.sling.jcr.api.SlingRepository;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import biz.netcentric.aem.applysystemenvinstallhook.ApplySystemEnvInstallHook;
+
 @Service({ PackageReinstaller.class, TopologyEventListener.class })
-@Component
+@Component(metatype = true, label = "System Env Package Reinstaller", description = "Reinstalls the env-specific packages when system env values have changed.")
 public class PackageReinstaller implements TopologyEventListener {
     private static final Logger LOG = LoggerFactory.getLogger(PackageReinstaller.class);
 
     private static final String PACKAGE_ROOT_PATH = "/etc/packages";
     private static final String PACKAGE_PROP_PREFIX = "envSpecificPackage_";
+    private static final String PACKAGE_VARS_PROP_PREFIX = "envSpecificPackageVars_";
+
+    private static final int DEFAULT_PARALLEL_INSTALLS = 1;
+    @org.apache.felix.scr.annotations.Property(intValue = DEFAULT_PARALLEL_INSTALLS, label = "Parallel installs", description = "Number of packages reinstalled in parallel (each with its own session), 1 to reinstall packages one after another")
+    private static final String PROP_PARALLEL_INSTALLS = "parallelInstalls";
+
+    @org.apache.felix.scr.annotations.Property(unbounded = PropertyUnbounded.ARRAY, label = "Sequential packages", description = "Regular expressions for package ids (group:name:version) of packages that must not be installed in parallel. Those are installed one after another before all other packages.")
+    private static final String PROP_SEQUENTIAL_PACKAGES = "sequentialPackages";
+
+    private static final boolean DEFAULT_REAPPLY_TEMPLATES = false;
+    @org.apache.felix.scr.annotations.Property(boolValue = DEFAULT_REAPPLY_TEMPLATES, label = "Re-apply templates", description = "Renders the .TEMPLATE nodes already in the repository again instead of reinstalling the package. Packages are only reinstalled if templates are missing or if applySystemEnvForPaths lists other paths than .TEMPLATE nodes.")
+    private static final String PROP_REAPPLY_TEMPLATES = "reapplyTemplates";
 
     @Reference
-    private Packaging packaging;
+    Packaging packaging;
 
     @Reference
-    private SlingRepository slingRepository;
+    SlingRepository slingRepository;
 
     @Reference
-    private DynamicClassLoaderManager dynLoaderMgr;
+    DynamicClassLoaderManager dynLoaderMgr;
 
     private boolean isLeader = false;
-    
+
+    private int parallelInstalls = DEFAULT_PARALLEL_INSTALLS;
+    private List<Pattern> sequentialPackagePatterns = new ArrayList<Pattern>();
+    private boolean reapplyTemplates = DEFAULT_REAPPLY_TEMPLATES;
+
+    @Activate
+    public void activate(@SuppressWarnings("rawtypes") final Map properties) {
+        parallelInstalls = Math.max(1, PropertiesUtil.toInteger(properties.get(PROP_PARALLEL_INSTALLS), DEFAULT_PARALLEL_INSTALLS));
+        sequentialPackagePatterns = new ArrayList<Pattern>();
+        for (String sequentialPackage : PropertiesUtil.toStringArray(properties.get(PROP_SEQUENTIAL_PACKAGES), new String[0])) {
+            if (sequentialPackage.trim().isEmpty()) {
+                continue;
+            }
+            try {
+                sequentialPackagePatterns.add(Pattern.compile(sequentialPackage.trim()));
+            } catch (PatternSyntaxException e) {
+                LOG.warn("Ignoring invalid pattern for sequential packages '" + sequentialPackage + "': " + e, e);
+            }
+        }
+        reapplyTemplates = PropertiesUtil.toBoolean(properties.get(PROP_REAPPLY_TEMPLATES), DEFAULT_REAPPLY_TEMPLATES);
+        if (reapplyTemplates) {
+            LOG.info("Re-applying templates instead of reinstalling packages where possible");
+        }
+        if (parallelInstalls > 1) {
+            LOG.info("Reinstalling up to {} packages in parallel (sequential packages: {})", parallelInstalls, sequentialPackagePatterns);
+        }
+    }
+
     @Override
     public void handleTopologyEvent(final TopologyEvent event) {
         if ((event.getType() == TopologyEvent.Type.TOPOLOGY_CHANGED)
@@ -64,6 +122,14 @@ public class PackageReinstaller implements TopologyEventListener {
     }
 
     public void installEnvSpecificPackages() {
+        installEnvSpecificPackages(null);
+    }
+
+    /** Reinstalls the env-specific packages that use any of the given variables (as recorded by the install hook). Packages without
+     * recorded variables (installed with an older version of the hook) are always reinstalled.
+     * 
+     * @param changedVariables the names of the changed variables or null to reinstall all env-specific packages */
+    public void installEnvSpecificPackages(Set<String> changedVariables) {
 
         if (!isMasterRepository()) {
             LOG.info("Will not reinstall env-specific packages as this instance is not a master repository");
@@ -81,23 +147,32 @@ public class PackageReinstaller implements TopologyEventListener {
             while (propertiesIt.hasNext()) {
                 Property nodeProp = propertiesIt.nextProperty();
                 if (nodeProp.getName().startsWith(PACKAGE_PROP_PREFIX)) {
-                    packagesToReinstall.add(nodeProp.getString());
+                    String packageKey = nodeProp.getName().substring(PACKAGE_PROP_PREFIX.length());
+                    if (usesChangedVariables(packagesRootNode, packageKey, changedVariables)) {
+                        packagesToReinstall.add(nodeProp.getString());
+                    } else {
+                        LOG.debug("Package {} does not use any of the changed variables", nodeProp.getString());
+                    }
                 }
             }
 
-            LOG.info("Found {} packages to reinstall at node {} (properties starting with {})", packagesToReinstall.size(),
-                    PACKAGE_ROOT_PATH, PACKAGE_PROP_PREFIX);
-
-            JcrPackageManager packageManager = packaging.getPackageManager(session);
+            LOG.info("Found {} packages to reinstall at node {} (properties starting with {}{})", packagesToReinstall.size(),
+                    PACKAGE_ROOT_PATH, PACKAGE_PROP_PREFIX, changedVariables != null ? " using " + changedVariables : "");
 
-            for (String packageIdStr : packagesToReinstall) {
-                PackageId packageId = PackageId.fromString(packageIdStr);
-                LOG.info("Reinstalling package {}...", packageId);
-                JcrPackage jcrPackage = packageManager.open(packageId);
-                ImportOptions options = new ImportOptions();
-                options.setHookClassLoader(dynLoaderMgr.getDynamicClassLoader());
-                jcrPackage.install(options);
-                LOG.info("Reinstalled package {}.", packageId);
+            if (parallelInstalls <= 1 || packagesToReinstall.size() <= 1) {
+                for (String packageIdStr : packagesToReinstall) {
+                    reinstallPackageOrLogError(session, packageIdStr);
+                }
+            } else {
+                List<String> sequentialPackages = new ArrayList<String>();
+                List<String> parallelPackages = new ArrayList<String>();
+                for (String packageIdStr : packagesToReinstall) {
+                    (isSequentialPackage(packageIdStr) ? sequentialPackages : parallelPackages).add(packageIdStr);
+                }
+                for (String packageIdStr : sequentialPackages) {
+                    reinstallPackageOrLogError(session, packageIdStr);
+                }
+                reinstallPackagesInParallel(parallelPackages);
             }
         } catch (Throwable e) {
             LOG.error("Could not install package after change event was received: " + e, e);
@@ -109,4 +184,127 @@ public class PackageReinstaller implements TopologyEventListener {
 
     }
 
+    /** Reinstalls the package and logs errors, so a failing package does not prevent the other packages from being reinstalled. */
+    private void reinstallPackageOrLogError(Session session, String packageIdStr) {
+        try {
+            reinstallPackage(session, packageIdStr);
+        } catch (Exception e) {
+            LOG.error("Could not reinstall package " + packageIdStr + ": " + e, e);
+            try {
+                // the session is used for further packages
+                session.refresh(false);
+            } catch (RepositoryException re) {
+                LOG.warn("Could not discard changes after failed reinstall of " + packageIdStr + ": " + re, re);
+            }
+        }
+    }
+
+    private void reinstallPackage(Session session, String packageIdStr) throws Exception {
+        PackageId packageId = PackageId.fromString(packageIdStr);
+        JcrPackageManager packageManager = packaging.getPackageManager(session);
+        JcrPackage jcrPackage = packageManager.open(packageId);
+        if (jcrPackage == null) {
+            LOG.warn("Package {} does not exist anymore, skipping it", packageId);
+            return;
+        }
+        try {
+            ImportOptions options = new ImportOptions();
+            if (reapplyTemplates && reapply(session, jcrPackage, options)) {
+                return;
+            }
+            LOG.info("Reinstalling package {}...", packageId);
+            options.setHookClassLoader(dynLoaderMgr.getDynamicClassLoader());
+            jcrPackage.install(options);
+        } finally {
+            jcrPackage.close();
+        }
+        LOG.info("Reinstalled package {}.", packageId);
+    }
+
+    // changes of a failed re-apply are discarded by the caller (refresh of the shared session or logout of a parallel install's session)
+    private boolean reapply(Session session, JcrPackage jcrPackage, ImportOptions options) throws Exception {
+        PackageId packageId = jcrPackage.getDefinition().getId();
+        if (new ApplySystemEnvInstallHook().reapply(jcrPackage.getPackage(), session, options)) {
+            LOG.info("Re-applied templates of package {}.", packageId);
+            return true;
+        }
+        LOG.info("Cannot re-apply templates of package {}, reinstalling it", packageId);
+        return false;
+    }
+
+    /** Reinstalls the given packages with a bounded pool, each install using its own session. Returns once all installs are done. */
+    private void reinstallPackagesInParallel(List<String> packageIdStrs) throws InterruptedException {
+        if (packageIdStrs.isEmpty()) {
+            return;
+        }
+        int threads = Math.min(parallelInstalls, packageIdStrs.size());
+        LOG.info("Reinstalling {} packages with {} threads", packageIdStrs.size(), threads);
+        ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger threadNo = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "sysenv-package-reinstall-" + threadNo.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (final String packageIdStr : packageIdStrs) {
+                futures.add(pool.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        Session session = null;
+                        try {
+                            session = slingRepository.loginService(null, null);
+                            reinstallPackage(session, packageIdStr);
+                        } catch (Throwable e) {
+                            LOG.error("Could not reinstall package " + packageIdStr + ": " + e, e);
+                        } finally {
+                            if (session != null) {
+                                session.logout();
+                            }
+                        }
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    // logged by the task already
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private boolean isSequentialPackage(String packageIdStr) {
+        for (Pattern sequentialPackagePattern : sequentialPackagePatterns) {
+            if (sequentialPackagePattern.matcher(packageIdStr).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean usesChangedVariables(Node packagesRootNode, String packageKey, Set<String> changedVariables)
+            throws RepositoryException {
+        if (changedVariables == null || !packagesRootNode.hasProperty(PACKAGE_VARS_PROP_PREFIX + packageKey)) {
+            return true;
+        }
+        Property packageVarsProp = packagesRootNode.getProperty(PACKAGE_VARS_PROP_PREFIX + packageKey);
+        List<String> packageVars = new ArrayList<String>();
+        if (packageVarsProp.isMultiple()) {
+            for (Value value : packageVarsProp.getValues()) {
+                packageVars.add(value.getString());
+            }
+        } else {
+            packageVars.addAll(Arrays.asList(packageVarsProp.getString()));
+        }
+        return !Collections.disjoint(packageVars, changedVariables);
+    }
+
 }
@@ -16,6 +16,7 @@ import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import com.adobe.granite.jmx.annotation.AnnotatedStandardMBean;
 
+import biz.netcentric.aem.applysystemenvinstallhook.VariablesSourceCache;
 import biz.netcentric.aem.sysenv.PackageReinstallerMBean;
 
 @Service({DynamicMBean.class})
@@ -26,6 +27,9 @@ public class PackageReinstallerMBeanImpl extends AnnotatedStandardMBean implemen
     @Reference
     private PackageReinstaller packageReinstaller;
 
+    @Reference
+    private ReinstallScheduler reinstallScheduler;
+
 
     public PackageReinstallerMBeanImpl() throws NotCompliantMBeanException {
         super(PackageReinstallerMBean.class);
@@ -33,8 +37,45 @@ public class PackageReinstallerMBeanImpl extends AnnotatedStandardMBean implemen
 
     @Override
     public void installEnvSpecificPackages() {
+        // a manual reinstall is expected to pick up the current values
+        VariablesSourceCache.invalidate("Reinstall triggered via JMX");
         packageReinstaller.installEnvSpecificPackages();
 
     }
 
+    @Override
+    public int getQueuedEventsCount() {
+        return reinstallScheduler.getQueuedEventsCount();
+    }
+
+    @Override
+    public long getHandledEventsCount() {
+        return reinstallScheduler.getHandledEventsCount();
+    }
+
+    @Override
+    public long getScheduledChangesCount() {
+        return reinstallScheduler.getScheduledChangesCount();
+    }
+
+    @Override
+    public long getReinstallRunsCount() {
+        return reinstallScheduler.getReinstallRunsCount();
+    }
+
+    @Override
+    public long getLastReinstallDuration() {
+        return reinstallScheduler.getLastReinstallDuration();
+    }
+
+    @Override
+    public boolean isReinstallPending() {
+        return reinstallScheduler.isReinstallPending();
+    }
+
+    @Override
+    public boolean isReinstallRunning() {
+        return reinstallScheduler.isReinstallRunning();
+    }
+
 }
@@ -0,0 +1,240 @@
+/*
+ * (C) Copyright 2018 Netcentric, A Cognizant Digital Business.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.aem.sysenv.impl.listener;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Coalesces change events of the listeners into reinstall runs: a run starts once no further change was received for the quiet period,
+ * but at the latest after the max delay after the first pending change. At most one run is in progress and at most one run is pending
+ * (changes received during a run are collected for the next run).
+ *
+ * Both reinstalls and the handling of change events that require remote calls (see {@link #handleEvent(String, Runnable)}) are run
+ * on threads of this component to not block the JCR observation and ZooKeeper event threads. The event queue is not limited, the
+ * callers are expected to coalesce their events (e.g. the ZooKeeper listener queues at most one reload at a time, as a reload always
+ * loads the latest data and sets the one-time watch again). */
+@Service(ReinstallScheduler.class)
+@Component(metatype = true, label = "System Env Reinstall Scheduler", description = "Coalesces changes received from JCR and ZooKeeper into package reinstalls.")
+public class ReinstallScheduler {
+    private static final Logger LOG = LoggerFactory.getLogger(ReinstallScheduler.class);
+
+    private static final long DEFAULT_QUIET_PERIOD = 2000;
+    @Property(longValue = DEFAULT_QUIET_PERIOD, label = "Quiet period (ms)", description = "Packages are reinstalled once no further change was received for this time")
+    private static final String PROP_QUIET_PERIOD = "quietPeriod";
+
+    private static final long DEFAULT_MAX_DELAY = 30000;
+    @Property(longValue = DEFAULT_MAX_DELAY, label = "Max delay (ms)", description = "Packages are reinstalled at the latest after this time after the first change, even if changes keep coming in")
+    private static final String PROP_MAX_DELAY = "maxDelay";
+
+    @Reference
+    PackageReinstaller packageReinstaller;
+
+    private long quietPeriod;
+    private long maxDelay;
+
+    private ScheduledExecutorService executor;
+    private ThreadPoolExecutor eventExecutor;
+
+    private final AtomicLong handledEventsCount = new AtomicLong();
+    private final AtomicLong scheduledChangesCount = new AtomicLong();
+    private final AtomicLong reinstallRunsCount = new AtomicLong();
+    private volatile long lastReinstallDuration = -1;
+
+    // all fields below are guarded by this
+    private boolean pending = false;
+    private Set<String> pendingVariables = null; // null for all packages
+    private long firstPendingAt;
+    private long lastChangeAt;
+    private boolean running = false;
+    private ScheduledFuture<?> scheduledRun = null;
+
+    @Activate
+    public void activate(@SuppressWarnings("rawtypes") final Map properties) {
+        quietPeriod = PropertiesUtil.toLong(properties.get(PROP_QUIET_PERIOD), DEFAULT_QUIET_PERIOD);
+        maxDelay = PropertiesUtil.toLong(properties.get(PROP_MAX_DELAY), DEFAULT_MAX_DELAY);
+        executor = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("sysenv-reinstall-scheduler"));
+        eventExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                new DaemonThreadFactory("sysenv-change-event-handler"));
+        LOG.info("Reinstalling packages after quiet period of {}ms (max delay {}ms)", quietPeriod, maxDelay);
+    }
+
+    @Deactivate
+    public void deactivate() {
+        eventExecutor.shutdownNow();
+        executor.shutdownNow();
+        synchronized (this) {
+            if (pending) {
+                LOG.warn("Discarding pending reinstall for variables {}", pendingVariables != null ? pendingVariables : "(all)");
+            }
+            pending = false;
+            pendingVariables = null;
+            scheduledRun = null;
+        }
+    }
+
+    /** Handles a change event asynchronously.
+     *
+     * @param description the event for log messages
+     * @param eventHandler the handling of the event, expected to call {@link #scheduleReinstall(Set)} if packages are affected
+     * @return true if the event was queued, false if the scheduler is stopped */
+    public boolean handleEvent(final String description, final Runnable eventHandler) {
+        try {
+            eventExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        eventHandler.run();
+                    } catch (RuntimeException e) {
+                        LOG.error("Could not handle " + description + ": " + e, e);
+                    } finally {
+                        handledEventsCount.incrementAndGet();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // only thrown once the executor is shut down as the queue is not limited
+            LOG.debug("Ignoring {} as the scheduler is stopped", description);
+            return false;
+        }
+        return true;
+    }
+
+    /** Schedules the reinstall of the packages using the given variables.
+     *
+     * @param changedVariables the names of the changed variables or null to reinstall all env-specific packages */
+    public synchronized void scheduleReinstall(Set<String> changedVariables) {
+        long now = System.currentTimeMillis();
+        scheduledChangesCount.incrementAndGet();
+        if (!pending) {
+            pending = true;
+            firstPendingAt = now;
+            pendingVariables = changedVariables != null ? new TreeSet<String>(changedVariables) : null;
+        } else if (pendingVariables != null) {
+            if (changedVariables != null) {
+                pendingVariables.addAll(changedVariables);
+            } else {
+                pendingVariables = null;
+            }
+        }
+        lastChangeAt = now;
+
+        if (running) {
+            LOG.debug("Reinstall in progress, changes will be applied in next run");
+        } else {
+            scheduleRun(now);
+        }
+    }
+
+    private void scheduleRun(long now) {
+        if (scheduledRun != null) {
+            scheduledRun.cancel(false);
+        }
+        long runAt = Math.min(lastChangeAt + quietPeriod, firstPendingAt + maxDelay);
+        long delay = Math.max(0, runAt - now);
+        LOG.debug("Scheduling reinstall in {}ms", delay);
+        scheduledRun = executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                runReinstall();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void runReinstall() {
+        Set<String> changedVariables;
+        synchronized (this) {
+            if (!pending) {
+                return;
+            }
+            changedVariables = pendingVariables;
+            pending = false;
+            pendingVariables = null;
+            running = true;
+            scheduledRun = null;
+            LOG.debug("Coalesced changes for {}ms", System.currentTimeMillis() - firstPendingAt);
+        }
+        long startTime = System.currentTimeMillis();
+        try {
+            packageReinstaller.installEnvSpecificPackages(changedVariables);
+        } finally {
+            reinstallRunsCount.incrementAndGet();
+            lastReinstallDuration = System.currentTimeMillis() - startTime;
+            synchronized (this) {
+                running = false;
+                if (pending && !executor.isShutdown()) {
+                    scheduleRun(System.currentTimeMillis());
+                }
+            }
+        }
+    }
+
+    int getQueuedEventsCount() {
+        return eventExecutor != null ? eventExecutor.getQueue().size() : 0;
+    }
+
+    long getHandledEventsCount() {
+        return handledEventsCount.get();
+    }
+
+    long getScheduledChangesCount() {
+        return scheduledChangesCount.get();
+    }
+
+    long getReinstallRunsCount() {
+        return reinstallRunsCount.get();
+    }
+
+    long getLastReinstallDuration() {
+        return lastReinstallDuration;
+    }
+
+    synchronized boolean isReinstallPending() {
+        return pending;
+    }
+
+    synchronized boolean isReinstallRunning() {
+        return running;
+    }
+
+    private static final class DaemonThreadFactory implements ThreadFactory {
+        private final String name;
+
+        DaemonThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+}
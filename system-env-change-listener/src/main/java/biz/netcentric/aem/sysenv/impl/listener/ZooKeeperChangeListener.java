@@ -8,6 +8,13 @@
  */
 package biz.netcentric.aem.sysenv.impl.listener;
 
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.lang.StringUtils;
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Deactivate;
@@ -18,6 +25,7 @@ import org.osgi.framework.BundleContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import biz.netcentric.aem.applysystemenvinstallhook.VariablesSourceCache;
 import biz.netcentric.aem.applysystemenvinstallhook.zookeeper.ZooKeeperConfig;
 import biz.netcentric.aem.applysystemenvinstallhook.zookeeper.ZooKeeperLoader;
 
@@ -28,50 +36,138 @@ public class ZooKeeperChangeListener implements Watcher {
     @Reference
     PackageReinstaller packageReinstaller;
 
+    @Reference
+    ReinstallScheduler reinstallScheduler;
+
     private ZooKeeperLoader loader = new ZooKeeperLoader();
     private ZooKeeperConfig config = new ZooKeeperConfig();
 
+    // last loaded variables (with overrides applied) to suppress reinstalls for changes without effect
+    private Map<String, String> lastVariables = null;
+    private int lastVariablesVersion = 0;
+
+    // a queued reload loads the latest data, so further events until it starts do not need to be queued
+    private final AtomicBoolean reloadQueued = new AtomicBoolean(false);
+
     @Activate
-    public void activate(BundleContext bundleContext) {
-        setupWatcher();
+    public synchronized void activate(BundleContext bundleContext) {
+        lastVariables = setupWatcher();
     }
 
     @Deactivate
-    public void deactivate() {
+    public synchronized void deactivate() {
         loader.closeSession();
         loader = null;
         LOG.info("Stopped listening for ZooKeeper changes at {}", config.getConnectStr());
     }
 
-    private void setupWatcher() {
+    /** @return the effective variables as loaded when setting up the watcher or null if they could not be loaded */
+    private Map<String, String> setupWatcher() {
         try {
             LOG.info("Listening for ZooKeeper changes at {}", config.getConnectStr());
-            loader.loadData(config, this);
+            return getEffectiveVariables(loader.loadVariables(config, this));
         } catch (Exception e) {
             LOG.warn("Could not load data from ZooKeeper at " + config.getConnectStr() + ": " + e, e);
             LOG.warn("No more updates will be received from ZooKeeper");
+            return null;
         }
     }
 
     @Override
-    public void process(WatchedEvent watchedEvent) {
-        if (watchedEvent.getType() != Watcher.Event.EventType.NodeDataChanged) {
-            LOG.info("Ignoring ZooKeeper event type: {}", watchedEvent.getType());
+    public void process(final WatchedEvent watchedEvent) {
+        if (watchedEvent.getState() == Watcher.Event.KeeperState.Expired) {
+            // watches are lost with the session, the session manager creates a new session (changes may have been missed meanwhile)
+            LOG.info("ZooKeeper session expired, setting up watcher again");
+        } else if (watchedEvent.getType() == Watcher.Event.EventType.None) {
+            LOG.info("Ignoring ZooKeeper event with state: {}", watchedEvent.getState());
             return;
+        } else {
+            // data changed at configured znode or one of its children, or children added/removed
+            LOG.info("Received {} event from ZooKeeper: {}", watchedEvent.getType(), watchedEvent);
         }
 
-        LOG.info("Received NodeDataChanged event from ZooKeeper: {}", watchedEvent);
+        // reloaded on the scheduler's event thread to not block the ZooKeeper client's event thread with remote calls
+        if (!reloadQueued.compareAndSet(false, true)) {
+            LOG.debug("Reload from ZooKeeper is queued already");
+            return;
+        }
+        boolean queued = reinstallScheduler.handleEvent("ZooKeeper event " + watchedEvent, new Runnable() {
+            @Override
+            public void run() {
+                reloadQueued.set(false);
+                reload(watchedEvent);
+            }
+        });
+        if (!queued) {
+            // the scheduler is stopped
+            reloadQueued.set(false);
+        }
+    }
+
+    private synchronized void reload(WatchedEvent watchedEvent) {
+        if (loader == null) {
+            LOG.debug("Listener is stopped, not reloading data from ZooKeeper");
+            return;
+        }
+
+        // set watcher again (before reinstalling to not miss changes during the reinstall)
+        Map<String, String> variables = setupWatcher();
+        if (variables == null) {
+            return;
+        }
+        SortedSet<String> changedKeys = getChangedKeys(lastVariables, variables);
+        if (lastVariables != null && changedKeys.isEmpty()) {
+            LOG.info("Variables in ZooKeeper are effectively unchanged (version {}), not reinstalling packages", lastVariablesVersion);
+            return;
+        }
+        boolean hadVariables = lastVariables != null;
+        lastVariables = variables;
+        lastVariablesVersion++;
+        LOG.info("Variables in ZooKeeper changed (version {}): {}", lastVariablesVersion, changedKeys);
+
+        VariablesSourceCache.invalidate("Data changed in ZooKeeper at " + watchedEvent.getPath());
 
         if (!packageReinstaller.isMasterRepository()) {
             LOG.info("Ignoring changed env properties from ZooKeeper as this is not the master repository");
             return;
         }
 
-        // reinstall all packages with hook
-        packageReinstaller.installEnvSpecificPackages();
+        // reinstall packages using the changed variables (all packages if the variables could not be loaded before)
+        reinstallScheduler.scheduleReinstall(hadVariables ? changedKeys : null);
+    }
+
+    Map<String, String> getEffectiveVariables(Map<String, String> variables) {
+        Map<String, String> effectiveVariables = config.applyOverrides(variables);
+        if (StringUtils.isNotBlank(config.getOverrideSuffix())) {
+            // keys with suffix are either applied already or meant for other instances
+            Iterator<String> keysIt = effectiveVariables.keySet().iterator();
+            while (keysIt.hasNext()) {
+                if (keysIt.next().contains("@")) {
+                    keysIt.remove();
+                }
+            }
+        }
+        return effectiveVariables;
+    }
 
-        // set watcher again
-        setupWatcher();
+    /** @return keys that were added, removed or changed (all keys of the new variables if there are no old variables) */
+    static SortedSet<String> getChangedKeys(Map<String, String> oldVariables, Map<String, String> newVariables) {
+        SortedSet<String> changedKeys = new TreeSet<String>();
+        if (oldVariables == null) {
+            changedKeys.addAll(newVariables.keySet());
+            return changedKeys;
+        }
+        for (Map.Entry<String, String> newVariable : newVariables.entrySet()) {
+            if (!StringUtils.equals(newVariable.getValue(), oldVariables.get(newVariable.getKey()))) {
+                changedKeys.add(newVariable.getKey());
+            }
+        }
+        for (String oldKey : oldVariables.keySet()) {
+            if (!newVariables.containsKey(oldKey)) {
+                changedKeys.add(oldKey);
+            }
+        }
+        return changedKeys;
     }
 
 }
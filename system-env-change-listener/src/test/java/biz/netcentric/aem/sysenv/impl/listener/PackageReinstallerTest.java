@@ -0,0 +1,286 @@
+/*
+ * (C) Copyright 2018 Netcentric, A Cognizant Digital Business.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.aem.sysenv.impl.listener;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.jackrabbit.commons.iterator.PropertyIteratorAdapter;
+import org.apache.jackrabbit.vault.fs.api.PathFilterSet;
+import org.apache.jackrabbit.vault.fs.api.WorkspaceFilter;
+import org.apache.jackrabbit.vault.fs.config.MetaInf;
+import org.apache.jackrabbit.vault.fs.io.Archive;
+import org.apache.jackrabbit.vault.fs.io.ImportOptions;
+import org.apache.jackrabbit.vault.packaging.JcrPackage;
+import org.apache.jackrabbit.vault.packaging.JcrPackageDefinition;
+import org.apache.jackrabbit.vault.packaging.JcrPackageManager;
+import org.apache.jackrabbit.vault.packaging.PackageException;
+import org.apache.jackrabbit.vault.packaging.PackageId;
+import org.apache.jackrabbit.vault.packaging.PackageProperties;
+import org.apache.jackrabbit.vault.packaging.Packaging;
+import org.apache.jackrabbit.vault.packaging.VaultPackage;
+import org.apache.sling.commons.classloader.DynamicClassLoaderManager;
+import org.apache.sling.discovery.InstanceDescription;
+import org.apache.sling.discovery.TopologyEvent;
+import org.apache.sling.discovery.TopologyView;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class PackageReinstallerTest {
+
+    private PackageReinstaller packageReinstaller;
+
+    // sessions in the order of login, the first one is used to find the packages and for sequential installs
+    private final List<Session> sessions = Collections.synchronizedList(new ArrayList<Session>());
+    private final List<Install> installs = Collections.synchronizedList(new ArrayList<Install>());
+    private final Set<String> failingPackages = new HashSet<String>();
+    // packages whose templates cannot be re-applied as their archive cannot be read
+    private final Set<String> brokenArchivePackages = new HashSet<String>();
+    private boolean reapplyTemplates;
+    private List<String> packageIds;
+
+    @Before
+    public void setup() throws RepositoryException {
+        packageReinstaller = new PackageReinstaller();
+        packageReinstaller.slingRepository = mock(SlingRepository.class);
+        when(packageReinstaller.slingRepository.loginService(null, null)).thenAnswer(new Answer<Session>() {
+            @Override
+            public Session answer(InvocationOnMock invocation) throws RepositoryException {
+                return mockSession();
+            }
+        });
+        packageReinstaller.packaging = mock(Packaging.class);
+        when(packageReinstaller.packaging.getPackageManager(any(Session.class))).thenAnswer(new Answer<JcrPackageManager>() {
+            @Override
+            public JcrPackageManager answer(InvocationOnMock invocation) throws RepositoryException {
+                return mockPackageManager((Session) invocation.getArgument(0));
+            }
+        });
+        packageReinstaller.dynLoaderMgr = mock(DynamicClassLoaderManager.class);
+        when(packageReinstaller.dynLoaderMgr.getDynamicClassLoader()).thenReturn(getClass().getClassLoader());
+
+        TopologyView view = mock(TopologyView.class);
+        InstanceDescription localInstance = mock(InstanceDescription.class);
+        when(localInstance.isLeader()).thenReturn(true);
+        when(view.getLocalInstance()).thenReturn(localInstance);
+        packageReinstaller.handleTopologyEvent(new TopologyEvent(TopologyEvent.Type.TOPOLOGY_INIT, null, view));
+    }
+
+    @Test
+    public void testSequentialInstalls() throws RepositoryException {
+        activate(1);
+        packageIds = Arrays.asList("test:a:1", "test:b:1", "test:c:1");
+        failingPackages.add("test:a:1");
+
+        packageReinstaller.installEnvSpecificPackages();
+
+        // the failing package does not prevent the following packages from being installed
+        assertEquals(Arrays.asList("test:a:1", "test:b:1", "test:c:1"), getInstalledPackageIds(installs));
+        assertEquals(1, sessions.size());
+        verify(sessions.get(0)).refresh(false);
+        verify(sessions.get(0)).logout();
+    }
+
+    @Test
+    public void testParallelInstalls() throws RepositoryException {
+        activate(2, "test:seq-.*");
+        packageIds = Arrays.asList("test:seq-a:1", "test:par-a:1", "test:seq-b:1", "test:par-b:1", "test:par-c:1");
+        failingPackages.add("test:seq-a:1");
+
+        packageReinstaller.installEnvSpecificPackages();
+
+        // sequential packages first (despite of the failure of the first one), on the calling thread with the session used to find
+        // the packages
+        Session mainSession = sessions.get(0);
+        assertEquals(Arrays.asList("test:seq-a:1", "test:seq-b:1"), getInstalledPackageIds(installs.subList(0, 2)));
+        for (Install install : installs.subList(0, 2)) {
+            assertSame(mainSession, install.session);
+            assertEquals(Thread.currentThread().getName(), install.threadName);
+        }
+
+        // then the other packages on the pool, each with its own session
+        List<String> parallelPackageIds = getInstalledPackageIds(installs.subList(2, installs.size()));
+        Collections.sort(parallelPackageIds);
+        assertEquals(Arrays.asList("test:par-a:1", "test:par-b:1", "test:par-c:1"), parallelPackageIds);
+        Set<Session> parallelSessions = new HashSet<Session>();
+        for (Install install : installs.subList(2, installs.size())) {
+            assertNotSame(mainSession, install.session);
+            assertTrue(install.threadName, install.threadName.startsWith("sysenv-package-reinstall-"));
+            parallelSessions.add(install.session);
+        }
+        assertEquals(3, parallelSessions.size());
+
+        assertEquals(4, sessions.size());
+        for (Session session : sessions) {
+            verify(session).logout();
+        }
+    }
+
+    @Test
+    public void testNotLeader() throws RepositoryException {
+        activate(1);
+        packageIds = Arrays.asList("test:a:1");
+        TopologyView view = mock(TopologyView.class);
+        when(view.getLocalInstance()).thenReturn(mock(InstanceDescription.class));
+        packageReinstaller.handleTopologyEvent(new TopologyEvent(TopologyEvent.Type.TOPOLOGY_CHANGED, view, view));
+        assertFalse(packageReinstaller.isMasterRepository());
+
+        packageReinstaller.installEnvSpecificPackages();
+        assertTrue(installs.isEmpty());
+        assertTrue(sessions.isEmpty());
+    }
+
+    @Test
+    public void testReapplyTemplates() throws RepositoryException {
+        reapplyTemplates = true;
+        activate(1);
+        packageIds = Arrays.asList("test:a:1", "test:b:1");
+        brokenArchivePackages.add("test:a:1");
+
+        packageReinstaller.installEnvSpecificPackages();
+
+        // a is neither re-applied nor reinstalled, b adjusts a path in place and hence falls back to a reinstall
+        assertEquals(Arrays.asList("test:b:1"), getInstalledPackageIds(installs));
+        assertEquals(1, sessions.size());
+        // the changes of the failed re-apply are discarded before the next package is processed
+        InOrder inOrder = Mockito.inOrder(sessions.get(0));
+        inOrder.verify(sessions.get(0)).refresh(false);
+        inOrder.verify(sessions.get(0)).logout();
+        verify(sessions.get(0), never()).save();
+    }
+
+    private void activate(int parallelInstalls, String... sequentialPackages) {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("parallelInstalls", parallelInstalls);
+        properties.put("reapplyTemplates", reapplyTemplates);
+        properties.put("sequentialPackages", sequentialPackages);
+        packageReinstaller.activate(properties);
+    }
+
+    private Session mockSession() throws RepositoryException {
+        Session session = mock(Session.class);
+        final List<Property> packageProperties = new ArrayList<Property>();
+        for (String packageId : packageIds) {
+            Property property = mock(Property.class);
+            when(property.getName()).thenReturn("envSpecificPackage_" + packageId.replace(':', '_'));
+            when(property.getString()).thenReturn(packageId);
+            packageProperties.add(property);
+        }
+        Node packagesRootNode = mock(Node.class);
+        when(packagesRootNode.getProperties()).thenAnswer(new Answer<PropertyIteratorAdapter>() {
+            @Override
+            public PropertyIteratorAdapter answer(InvocationOnMock invocation) {
+                return new PropertyIteratorAdapter(packageProperties);
+            }
+        });
+        when(session.getNode("/etc/packages")).thenReturn(packagesRootNode);
+        sessions.add(session);
+        return session;
+    }
+
+    private JcrPackageManager mockPackageManager(final Session session) throws RepositoryException {
+        JcrPackageManager packageManager = mock(JcrPackageManager.class);
+        when(packageManager.open(any(PackageId.class))).thenAnswer(new Answer<JcrPackage>() {
+            @Override
+            public JcrPackage answer(InvocationOnMock invocation) throws Exception {
+                final String packageId = invocation.getArgument(0).toString();
+                JcrPackage jcrPackage = mock(JcrPackage.class);
+                JcrPackageDefinition definition = mock(JcrPackageDefinition.class);
+                when(definition.getId()).thenReturn(PackageId.fromString(packageId));
+                when(jcrPackage.getDefinition()).thenReturn(definition);
+                VaultPackage vaultPackage = mockVaultPackage(packageId);
+                when(jcrPackage.getPackage()).thenReturn(vaultPackage);
+                doAnswer(new Answer<Void>() {
+                    @Override
+                    public Void answer(InvocationOnMock invocation) throws PackageException {
+                        installs.add(new Install(packageId, session, Thread.currentThread().getName()));
+                        if (failingPackages.contains(packageId)) {
+                            throw new PackageException("Test failure of " + packageId);
+                        }
+                        return null;
+                    }
+                }).when(jcrPackage).install(any(ImportOptions.class));
+                return jcrPackage;
+            }
+        });
+        return packageManager;
+    }
+
+    private VaultPackage mockVaultPackage(String packageId) throws IOException {
+        VaultPackage vaultPackage = mock(VaultPackage.class);
+        when(vaultPackage.getId()).thenReturn(PackageId.fromString(packageId));
+        PackageProperties properties = mock(PackageProperties.class);
+        when(properties.getProperty(anyString())).thenReturn(null);
+        when(properties.getProperty("applySystemEnvSources")).thenReturn("SystemProperties");
+        if (!brokenArchivePackages.contains(packageId)) {
+            when(properties.getProperty("applySystemEnvForPaths")).thenReturn("/content/in-place");
+        }
+        when(vaultPackage.getProperties()).thenReturn(properties);
+        Archive archive = mock(Archive.class);
+        when(archive.getJcrRoot()).thenThrow(new IOException("Test failure of archive of " + packageId));
+        when(vaultPackage.getArchive()).thenReturn(archive);
+        WorkspaceFilter filter = mock(WorkspaceFilter.class);
+        when(filter.getFilterSets()).thenReturn(Arrays.asList(new PathFilterSet("/content")));
+        MetaInf metaInf = mock(MetaInf.class);
+        when(metaInf.getFilter()).thenReturn(filter);
+        when(vaultPackage.getMetaInf()).thenReturn(metaInf);
+        return vaultPackage;
+    }
+
+    private static List<String> getInstalledPackageIds(List<Install> installs) {
+        List<String> packageIds = new ArrayList<String>();
+        for (Install install : installs) {
+            packageIds.add(install.packageId);
+        }
+        return packageIds;
+    }
+
+    private static final class Install {
+        final String packageId;
+        final Session session;
+        final String threadName;
+
+        Install(String packageId, Session session, String threadName) {
+            this.packageId = packageId;
+            this.session = session;
+            this.threadName = threadName;
+        }
+    }
+
+}
@@ -0,0 +1,175 @@
+/*
+ * (C) Copyright 2018 Netcentric, A Cognizant Digital Business.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.aem.sysenv.impl.listener;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentMatchers;
+import org.mockito.InOrder;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class ReinstallSchedulerTest {
+
+    private static final long QUIET_PERIOD = 300;
+    private static final long MAX_DELAY = 800;
+
+    private ReinstallScheduler reinstallScheduler;
+    private PackageReinstaller packageReinstaller;
+
+    @Before
+    public void setup() {
+        packageReinstaller = mock(PackageReinstaller.class);
+        reinstallScheduler = new ReinstallScheduler();
+        reinstallScheduler.packageReinstaller = packageReinstaller;
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("quietPeriod", QUIET_PERIOD);
+        properties.put("maxDelay", MAX_DELAY);
+        reinstallScheduler.activate(properties);
+    }
+
+    @After
+    public void tearDown() {
+        reinstallScheduler.deactivate();
+    }
+
+    @Test
+    public void testQuietPeriod() throws InterruptedException {
+        reinstallScheduler.scheduleReinstall(variables("a"));
+        Thread.sleep(QUIET_PERIOD / 2);
+        reinstallScheduler.scheduleReinstall(variables("b"));
+        Thread.sleep(QUIET_PERIOD / 2);
+
+        // the second change restarted the quiet period
+        verify(packageReinstaller, never()).installEnvSpecificPackages(any(Set.class));
+        assertTrue(reinstallScheduler.isReinstallPending());
+
+        verify(packageReinstaller, timeout(2000)).installEnvSpecificPackages(variables("a", "b"));
+        Thread.sleep(QUIET_PERIOD * 2);
+        verify(packageReinstaller, times(1)).installEnvSpecificPackages(any(Set.class));
+        assertFalse(reinstallScheduler.isReinstallPending());
+        assertEquals(2, reinstallScheduler.getScheduledChangesCount());
+        assertEquals(1, reinstallScheduler.getReinstallRunsCount());
+    }
+
+    @Test
+    public void testMaxDelay() throws InterruptedException {
+        long startTime = System.currentTimeMillis();
+        // changes keep coming in faster than the quiet period
+        while (System.currentTimeMillis() - startTime < MAX_DELAY + QUIET_PERIOD) {
+            reinstallScheduler.scheduleReinstall(variables("a"));
+            Thread.sleep(QUIET_PERIOD / 3);
+        }
+
+        // the last change was received within the quiet period, hence the run was started by the max delay
+        verify(packageReinstaller, atLeastOnce()).installEnvSpecificPackages(variables("a"));
+    }
+
+    @Test
+    public void testMergeVariables() {
+        reinstallScheduler.scheduleReinstall(variables("b"));
+        reinstallScheduler.scheduleReinstall(variables("a"));
+        verify(packageReinstaller, timeout(2000)).installEnvSpecificPackages(variables("a", "b"));
+
+        // null stands for all packages and is kept when merging
+        reinstallScheduler.scheduleReinstall(variables("a"));
+        reinstallScheduler.scheduleReinstall(null);
+        reinstallScheduler.scheduleReinstall(variables("b"));
+        verify(packageReinstaller, timeout(2000)).installEnvSpecificPackages(isNull(Set.class));
+        // any(Set.class) does not match null
+        verify(packageReinstaller, times(2)).installEnvSpecificPackages(ArgumentMatchers.<Set<String>> any());
+    }
+
+    @Test
+    public void testChangesDuringRun() throws InterruptedException {
+        final CountDownLatch runStarted = new CountDownLatch(1);
+        final CountDownLatch finishRun = new CountDownLatch(1);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws InterruptedException {
+                if (variables("a").equals(invocation.getArgument(0))) {
+                    runStarted.countDown();
+                    finishRun.await(5, TimeUnit.SECONDS);
+                }
+                return null;
+            }
+        }).when(packageReinstaller).installEnvSpecificPackages(any(Set.class));
+
+        reinstallScheduler.scheduleReinstall(variables("a"));
+        assertTrue(runStarted.await(2, TimeUnit.SECONDS));
+        assertTrue(reinstallScheduler.isReinstallRunning());
+
+        reinstallScheduler.scheduleReinstall(variables("b"));
+        reinstallScheduler.scheduleReinstall(variables("c"));
+        Thread.sleep(QUIET_PERIOD * 2);
+        // no second run while the first one is in progress
+        verify(packageReinstaller, times(1)).installEnvSpecificPackages(any(Set.class));
+        finishRun.countDown();
+
+        verify(packageReinstaller, timeout(2000)).installEnvSpecificPackages(variables("b", "c"));
+        Thread.sleep(QUIET_PERIOD * 2);
+        // exactly one follow-up run for all changes received during the first run
+        InOrder inOrder = Mockito.inOrder(packageReinstaller);
+        inOrder.verify(packageReinstaller).installEnvSpecificPackages(variables("a"));
+        inOrder.verify(packageReinstaller).installEnvSpecificPackages(variables("b", "c"));
+        verify(packageReinstaller, times(2)).installEnvSpecificPackages(any(Set.class));
+        assertFalse(reinstallScheduler.isReinstallRunning());
+    }
+
+    @Test
+    public void testHandleEvent() throws InterruptedException {
+        final CountDownLatch handled = new CountDownLatch(1);
+        assertTrue(reinstallScheduler.handleEvent("test event", new Runnable() {
+            @Override
+            public void run() {
+                reinstallScheduler.scheduleReinstall(variables("a"));
+                handled.countDown();
+            }
+        }));
+        assertTrue(handled.await(2, TimeUnit.SECONDS));
+        verify(packageReinstaller, timeout(2000)).installEnvSpecificPackages(variables("a"));
+        assertEquals(1, reinstallScheduler.getHandledEventsCount());
+
+        reinstallScheduler.deactivate();
+        assertFalse(reinstallScheduler.handleEvent("event after stop", new Runnable() {
+            @Override
+            public void run() {
+                reinstallScheduler.scheduleReinstall(null);
+            }
+        }));
+    }
+
+    private static Set<String> variables(String... names) {
+        return new TreeSet<String>(Arrays.asList(names));
+    }
+
+}
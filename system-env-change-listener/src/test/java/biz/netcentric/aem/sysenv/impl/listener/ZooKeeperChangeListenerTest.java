@@ -0,0 +1,73 @@
+/*
+ * (C) Copyright 2018 Netcentric, A Cognizant Digital Business.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.aem.sysenv.impl.listener;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.junit.After;
+import org.junit.Test;
+
+import biz.netcentric.aem.applysystemenvinstallhook.zookeeper.ZooKeeperConfig;
+
+public class ZooKeeperChangeListenerTest {
+
+    @After
+    public void tearDown() {
+        System.clearProperty(ZooKeeperConfig.SYS_PROP_OVERRIDE_SUFFIX);
+    }
+
+    @Test
+    public void testGetChangedKeys() {
+        Map<String, String> oldVariables = variables("a", "1", "b", "2", "c", "3");
+
+        // all keys if there are no old variables
+        assertEquals(new TreeSet<String>(Arrays.asList("a", "b", "c")), ZooKeeperChangeListener.getChangedKeys(null, oldVariables));
+        assertTrue(ZooKeeperChangeListener.getChangedKeys(oldVariables, variables("c", "3", "b", "2", "a", "1")).isEmpty());
+
+        // changed, removed and added keys
+        assertEquals(new TreeSet<String>(Arrays.asList("a", "c", "d")),
+                ZooKeeperChangeListener.getChangedKeys(oldVariables, variables("a", "changed", "b", "2", "d", "4")));
+        assertEquals(new TreeSet<String>(Arrays.asList("a", "b", "c")),
+                ZooKeeperChangeListener.getChangedKeys(oldVariables, new HashMap<String, String>()));
+    }
+
+    @Test
+    public void testGetEffectiveVariables() {
+        System.setProperty(ZooKeeperConfig.SYS_PROP_OVERRIDE_SUFFIX, "author");
+        ZooKeeperChangeListener listener = new ZooKeeperChangeListener();
+
+        // overrides for this instance are applied, keys for other instances are removed
+        assertEquals(variables("a", "author value", "c", "3"),
+                listener.getEffectiveVariables(variables("a", "1", "a@author", "author value", "b@publish", "2", "c", "3")));
+    }
+
+    @Test
+    public void testGetEffectiveVariablesWithoutOverrideSuffix() {
+        ZooKeeperChangeListener listener = new ZooKeeperChangeListener();
+
+        // without suffix keys containing @ are regular variables
+        assertEquals(variables("a", "1", "a@author", "author value"),
+                listener.getEffectiveVariables(variables("a", "1", "a@author", "author value")));
+    }
+
+    private static Map<String, String> variables(String... keysAndValues) {
+        Map<String, String> variables = new HashMap<String, String>();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            variables.put(keysAndValues[i], keysAndValues[i + 1]);
+        }
+        return variables;
+    }
+
+}